@@ -61,6 +61,11 @@ public class IpCameraBindingConstants {
     public static final String CONFIG_FFMPEG_GIF_OUT_ARGUMENTS = "FFMPEG_GIF_OUT_ARGUMENTS";
     public static final String CONFIG_GIF_PREROLL = "GIF_PREROLL";
     public static final String CONFIG_GIF_POSTROLL = "GIF_POSTROLL";
+    public static final String CONFIG_MAX_HTTP_CONNECTIONS = "MAX_HTTP_CONNECTIONS";
+    public static final String CONFIG_IMAGE_CHANGE_THRESHOLD = "IMAGE_CHANGE_THRESHOLD";
+    public static final String CONFIG_MJPEG_LINGER_SECONDS = "MJPEG_LINGER_SECONDS";
+    public static final String CONFIG_MJPEG_ALWAYS_ON = "MJPEG_ALWAYS_ON";
+    public static final String CONFIG_MJPEG_FROM_SNAPSHOT_MS = "MJPEG_FROM_SNAPSHOT_MS";
 
     // List of all Channel ids
     public static final String CHANNEL_UPDATE_IMAGE_NOW = "updateImageNow";
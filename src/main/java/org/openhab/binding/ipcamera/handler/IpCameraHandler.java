@@ -27,18 +27,28 @@ import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLEncoder;
-import java.net.UnknownHostException;
+import java.nio.channels.ClosedChannelException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.TimeoutException;
 
 import javax.xml.soap.SOAPException;
 
@@ -63,14 +73,29 @@ import org.onvif.ver10.schema.Vector1D;
 import org.onvif.ver10.schema.Vector2D;
 import org.onvif.ver10.schema.VideoEncoderConfiguration;
 import org.openhab.binding.ipcamera.internal.AmcrestHandler;
+import org.openhab.binding.ipcamera.internal.CameraRegistry;
+import org.openhab.binding.ipcamera.internal.CameraConnectionPool;
+import org.openhab.binding.ipcamera.internal.ChannelTracking;
 import org.openhab.binding.ipcamera.internal.DahuaHandler;
+import org.openhab.binding.ipcamera.internal.DigestChallenge;
 import org.openhab.binding.ipcamera.internal.DoorBirdHandler;
 import org.openhab.binding.ipcamera.internal.Ffmpeg;
 import org.openhab.binding.ipcamera.internal.FoscamHandler;
 import org.openhab.binding.ipcamera.internal.HikvisionHandler;
+import org.openhab.binding.ipcamera.internal.ImageChangeDetector;
 import org.openhab.binding.ipcamera.internal.InstarHandler;
+import org.openhab.binding.ipcamera.internal.IpWhitelist;
+import org.openhab.binding.ipcamera.internal.IpWhitelistFilter;
+import org.openhab.binding.ipcamera.internal.JpegFrame;
+import org.openhab.binding.ipcamera.internal.MjpegFrameDecoder;
+import org.openhab.binding.ipcamera.internal.MjpegViewer;
+import org.openhab.binding.ipcamera.internal.LatencyHistogram;
 import org.openhab.binding.ipcamera.internal.MyNettyAuthHandler;
+import org.openhab.binding.ipcamera.internal.RequestType;
+import org.openhab.binding.ipcamera.internal.ScaledMjpegVariant;
+import org.openhab.binding.ipcamera.internal.SharedStreamServer;
 import org.openhab.binding.ipcamera.internal.StreamServerHandler;
+import org.openhab.binding.ipcamera.internal.XxHash32;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -79,38 +104,44 @@ import de.onvif.soap.devices.PtzDevices;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelDuplexHandler;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
-import io.netty.channel.EventLoopGroup;
+import io.netty.channel.EventLoop;
+import io.netty.channel.WriteBufferWaterMark;
 import io.netty.channel.group.ChannelGroup;
 import io.netty.channel.group.DefaultChannelGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.codec.base64.Base64;
 import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpResponse;
 import io.netty.handler.codec.http.FullHttpRequest;
 import io.netty.handler.codec.http.HttpClientCodec;
 import io.netty.handler.codec.http.HttpContent;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaderValues;
-import io.netty.handler.codec.http.HttpMessage;
 import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpUtil;
 import io.netty.handler.codec.http.HttpVersion;
 import io.netty.handler.codec.http.LastHttpContent;
-import io.netty.handler.stream.ChunkedWriteHandler;
 import io.netty.handler.timeout.IdleState;
 import io.netty.handler.timeout.IdleStateEvent;
 import io.netty.handler.timeout.IdleStateHandler;
 import io.netty.util.CharsetUtil;
+import io.netty.util.IllegalReferenceCountException;
 import io.netty.util.ReferenceCountUtil;
 import io.netty.util.concurrent.GlobalEventExecutor;
 
@@ -128,9 +159,15 @@ public class IpCameraHandler extends BaseThingHandler {
                     THING_TYPE_INSTAR, THING_TYPE_FOSCAM, THING_TYPE_DOORBIRD, THING_TYPE_HIKVISION));
 
     public final Logger logger = LoggerFactory.getLogger(getClass());
-    private final ScheduledExecutorService cameraConnection = Executors.newSingleThreadScheduledExecutor();
-    private final ScheduledExecutorService scheduledMovePTZ = Executors.newSingleThreadScheduledExecutor();
-    private final ScheduledExecutorService pollCamera = Executors.newSingleThreadScheduledExecutor();
+    // All are shared by every camera and owned by the IpCameraHandlerFactory, never shut them down in here.
+    private final ScheduledExecutorService cameraScheduler;
+    // Decoding and scaling JPEGs is kept off the scheduler, so it can not hold up the polls and timers of every camera.
+    private final Executor imageExecutor;
+    private final EventLoop eventLoop;
+    private final CameraRegistry cameraRegistry;
+    private final SharedStreamServer sharedStreamServer;
+    // Parsed from IP_WHITELIST in initialize(), which openHAB calls again when the config is changed.
+    private volatile IpWhitelist ipWhitelist = IpWhitelist.parse("(127.0.0.1)");
 
     public Configuration config;
     private OnvifDevice onvifCamera;
@@ -140,40 +177,79 @@ public class IpCameraHandler extends BaseThingHandler {
     private String username;
     private String password;
     private ScheduledFuture<?> cameraConnectionJob = null;
+    private static final long RECONNECT_BASE_DELAY_MS = 4000;
+    private static final long RECONNECT_MAX_DELAY_MS = 300000;
+    private int reconnectAttempts = 0;
     private ScheduledFuture<?> pollCameraJob = null;
     private int selectedMediaProfile = 0;
     private Bootstrap mainBootstrap;
+    private Bootstrap probeBootstrap;
     private ServerBootstrap serverBootstrap;
-    private EventLoopGroup mainEventLoopGroup = new NioEventLoopGroup();
-    private EventLoopGroup serversLoopGroup = new NioEventLoopGroup();
-    private FullHttpRequest putRequestWithBody;
     private String nvrChannel;
     private CircularFifoBuffer fifoSnapshotBuffer;
     private int preroll, postroll, snapCount = 0;
     private boolean updateImage = true;
+    // Stops a static scene sending the same JPEG through the event bus on every poll.
+    private final ImageChangeDetector imageChangeDetector = new ImageChangeDetector();
+    // The newest picture waiting for the perceptual check, only one check per camera is queued or running at a time.
+    private final Object pendingImageLock = new Object();
+    private byte[] pendingImage = null;
+    private int pendingImageHash;
     private byte lowPriorityCounter = 0;
     public String hostIp = "0.0.0.0";
 
-    public ArrayList<String> listOfRequests = new ArrayList<String>(18);
-    public ArrayList<Channel> listOfChannels = new ArrayList<Channel>(18);
-    // Status can be -2=storing a reply, -1=closed, 0=closing (do not re-use
-    // channel), 1=open, 2=open and ok to reuse
-    public ArrayList<Byte> listOfChStatus = new ArrayList<Byte>(18);
-    public ArrayList<String> listOfReplies = new ArrayList<String>(18);
+    // One entry per URL, ConcurrentHashMap is used so the netty threads never have to wait on a lock.
+    public final Map<String, ChannelTracking> channelTrackingMap = new ConcurrentHashMap<String, ChannelTracking>();
+    // GETs waiting on a reply, so alarms and polls that ask for the same snapshot at once only fetch it once.
+    private final Map<String, CompletableFuture<String>> inFlightGets = new ConcurrentHashMap<>();
+    // The body of each PUT by its reply future, kept until the reply so a queued or DIGEST resent PUT sends its own.
+    private final Map<CompletableFuture<String>, FullHttpRequest> putBodies = new ConcurrentHashMap<>();
+    // Keep-alive channels are shared by all URLs, so a poll cycle does not need a new connection for every URL.
+    private final CameraConnectionPool connectionPool = new CameraConnectionPool(
+            CameraConnectionPool.DEFAULT_MAX_CONNECTIONS);
+    // How long this camera takes to answer each type of request, logged once a minute to help tune POLL_CAMERA_MS.
+    private final Map<RequestType, LatencyHistogram> requestLatency = new EnumMap<>(RequestType.class);
+    private long lastLatencyReport = System.currentTimeMillis();
     public ArrayList<String> lowPriorityRequests = null;
-    public ReentrantLock lock = new ReentrantLock();
     // ChannelGroup is thread safe
     final ChannelGroup mjpegChannelGroup = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+    // The stream server and every connection made to it, so they can all be closed without a thread pool shutdown.
+    private final ChannelGroup streamServerChannels = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
     // basicAuth MUST remain private as it holds the password
     private String basicAuth = null;
     public boolean useDigestAuth = false;
+    // Shared by all channels so requests can carry a Digest Authorization without waiting for a 401 first.
+    private volatile DigestChallenge digestChallenge = null;
 
     private String snapshotUri = null;
+    // A 4K snapshot arrives in a few hundred reads, more than this and netty merges the pieces.
+    private static final int MAX_SNAPSHOT_COMPONENTS = 1024;
     public String mjpegUri = null;
     ChannelFuture serverFuture = null;
     public int serverPort = 0;
-    Object firstStreamedMsg = null;
-    public byte[] currentSnapshot;
+    // Viewers get the frames re-packed under our own boundary, so a frame can be sent on its own to a single viewer.
+    private static final String MJPEG_BOUNDARY = "ipcameraFrame";
+    // A stream that has not sent a whole frame in this long is re-started.
+    private static final int MJPEG_STALL_MS = 10000;
+    private volatile long lastMjpegFrameTime = 0;
+    // The newest whole frame from the MJPEG stream, sent to viewers as they join. Only used on the camera's event loop.
+    private JpegFrame lastMjpegFrame = null;
+    // Keeps the camera's MJPEG stream open for a while after the last viewer leaves, as UIs often come straight back.
+    private int mjpegLingerMs = 10000;
+    private boolean mjpegAlwaysOn = false;
+    private ScheduledFuture<?> mjpegLingerJob = null;
+    // How many mosaics are showing this camera, they keep the MJPEG source open the same as a viewer does.
+    private int mjpegMosaicCount = 0;
+    // Cameras without a MJPEG stream get one made from snapshots, polled by one job however many are watching.
+    private int snapshotMjpegIntervalMs = 1000;
+    private volatile ScheduledFuture<?> snapshotMjpegJob = null;
+    // One per width that viewers have asked for with ?width=, shared by all viewers of that width.
+    private final Map<Integer, ScaledMjpegVariant> scaledMjpegVariants = new ConcurrentHashMap<>();
+    // Replaced as each new picture arrives, readers must use retainSnapshot() as the old frame is released then.
+    private volatile JpegFrame currentSnapshot = null;
+    private long snapshotVersion = 0;
+    // Stream server requests parked until a newer picture arrives, each is run once when it does.
+    private final ConcurrentLinkedQueue<Runnable> snapshotWaiters = new ConcurrentLinkedQueue<>();
     private String rtspUri = null;
 
     public String ipAddress = "empty";
@@ -207,8 +283,17 @@ public class IpCameraHandler extends BaseThingHandler {
     private Float currentTiltPercentage = 0.0f;
     private Float currentZoomPercentage = 0.0f;
 
-    public IpCameraHandler(Thing thing) {
+    public IpCameraHandler(Thing thing, EventLoop eventLoop, ScheduledExecutorService cameraScheduler,
+            Executor imageExecutor, CameraRegistry cameraRegistry, SharedStreamServer sharedStreamServer) {
         super(thing);
+        this.eventLoop = eventLoop;
+        this.cameraScheduler = cameraScheduler;
+        this.imageExecutor = imageExecutor;
+        this.cameraRegistry = cameraRegistry;
+        this.sharedStreamServer = sharedStreamServer;
+        for (RequestType type : RequestType.values()) {
+            requestLatency.put(type, new LatencyHistogram());
+        }
     }
 
     // false clears the stored user/pass hash, true creates the hash
@@ -235,6 +320,14 @@ public class IpCameraHandler extends BaseThingHandler {
         }
     }
 
+    public DigestChallenge getDigestChallenge() {
+        return digestChallenge;
+    }
+
+    public void setDigestChallenge(DigestChallenge challenge) {
+        digestChallenge = challenge;
+    }
+
     private String getCorrectUrlFormat(String longUrl) {
         String temp = longUrl;
         URL url;
@@ -261,105 +354,81 @@ public class IpCameraHandler extends BaseThingHandler {
         return temp;
     }
 
+    // Returns the tracking for a channel, or null if its URL has since been given a newer channel.
+    public ChannelTracking getTracker(Channel channel) {
+        ChannelTracking tracker = channel.attr(ChannelTracking.TRACKER).get();
+        if (tracker != null && tracker.isTracking(channel)) {
+            return tracker;
+        }
+        return null;
+    }
+
     private void cleanChannels() {
-        lock.lock();
-        for (byte index = 0; index < listOfRequests.size(); index++) {
-            logger.debug("Channel status is {} for URL:{}", listOfChStatus.get(index), listOfRequests.get(index));
-            switch (listOfChStatus.get(index)) {
-                case 2: // Open and OK to reuse
-                case 1: // Open
-                case 0: // Closing but still open
-                    Channel channel = listOfChannels.get(index);
-                    if (channel.isOpen()) {
-                        break;
-                    } else {
-                        listOfChStatus.set(index, (byte) -1);
-                        logger.warn("Cleaning the channels has just found a connection with wrong open state.");
-                    }
-                case -1: // closed
-                    listOfRequests.remove(index);
-                    listOfChStatus.remove(index);
-                    listOfChannels.remove(index);
-                    listOfReplies.remove(index);
-                    index--;
-                    break;
+        for (ChannelTracking tracker : channelTrackingMap.values()) {
+            logger.debug("Channel status is {} for URL:{}", tracker.getStatus(), tracker.getRequestUrl());
+            if (tracker.isOpen() || tracker.getStatus() == ChannelTracking.Status.CLOSING) {
+                Channel channel = tracker.getChannel();
+                if (channel != null && channel.isOpen()) {
+                    continue;
+                }
+                logger.warn("Cleaning the channels has just found a connection with wrong open state.");
+                tracker.setStatus(ChannelTracking.Status.CLOSED);
+            }
+            // Keep any stored reply as hikChangeSetting needs them to build a PUT.
+            if (tracker.getReply() == null) {
+                channelTrackingMap.remove(tracker.getRequestUrl(), tracker);
             }
         }
-        lock.unlock();
     }
 
     private void closeChannel(String url) {
-        lock.lock();
-        try {
-            for (byte index = 0; index < listOfRequests.size(); index++) {
-                if (listOfRequests.get(index).equals(url)) {
-                    switch (listOfChStatus.get(index)) {
-                        case 2: // Still open and OK to reuse
-                        case 1: // Still open
-                        case 0: // Marked as closing but channel still needs to be closed.
-                            Channel chan = listOfChannels.get(index);
-                            chan.close();// We can't wait as OH kills any handler that takes >5 seconds.
-                    }
-                }
+        ChannelTracking tracker = channelTrackingMap.get(url);
+        if (tracker != null && tracker.getStatus() != ChannelTracking.Status.CLOSED) {
+            Channel chan = tracker.getChannel();
+            if (chan != null) {
+                chan.close();// We can't wait as OH kills any handler that takes >5 seconds.
             }
-        } finally {
-            lock.unlock();
         }
     }
 
+    // The channel only finishes closing later on the event loop, so the stream is marked as stopped and its GET is
+    // forgotten now. A GET sent straight after then opens a new stream instead of joining the one that is closing.
+    private void closeStream(String httpRequestURLFull) {
+        String url = getTinyUrl(httpRequestURLFull);
+        ChannelTracking tracker = channelTrackingMap.get(url);
+        if (tracker != null && tracker.isOpen()) {
+            tracker.setStatus(ChannelTracking.Status.CLOSING);
+        }
+        inFlightGets.remove(httpRequestURLFull);
+        closeChannel(url);
+    }
+
     private void closeAllChannels() {
-        lock.lock();
-        try {
-            for (byte index = 0; index < listOfRequests.size(); index++) {
-                logger.debug("Channel status is {} for URL:{}", listOfChStatus.get(index), listOfRequests.get(index));
-                switch (listOfChStatus.get(index)) {
-                    case 2: // Still open and ok to reuse
-                    case 1: // Still open
-                    case 0: // Marked as closing but channel still needs to be closed.
-                        Channel chan = listOfChannels.get(index);
-                        chan.close();
-                        // Handlers may get shutdown by Openhab if total delay >5 secs so no wait.
-                        break;
+        connectionPool.clear();
+        for (ChannelTracking tracker : channelTrackingMap.values()) {
+            logger.debug("Channel status is {} for URL:{}", tracker.getStatus(), tracker.getRequestUrl());
+            if (tracker.getStatus() != ChannelTracking.Status.CLOSED) {
+                Channel chan = tracker.getChannel();
+                if (chan != null) {
+                    chan.close();
+                    // Handlers may get shutdown by Openhab if total delay >5 secs so no wait.
                 }
             }
-        } finally {
-            lock.unlock();
         }
     }
 
     public void hikChangeSetting(String httpGetPutURL, String findOldValue, String newValue) {
-        String body;
-        byte indexInLists;
-        lock.lock();
-        try {
-            indexInLists = (byte) listOfRequests.indexOf(httpGetPutURL);
-        } finally {
-            lock.unlock();
-        }
-        if (indexInLists >= 0) {
-            lock.lock();
-            if (listOfReplies.get(indexInLists) != null) {
-                body = listOfReplies.get(indexInLists);
-                lock.unlock();
-                logger.debug("An OLD reply from the camera was:{}", body);
-                body = body.replace(findOldValue, newValue);
-                logger.debug("Body for this PUT is going to be:{}", body);
-                FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, new HttpMethod("PUT"),
-                        httpGetPutURL);
-                request.headers().set(HttpHeaderNames.HOST, ipAddress);
-                request.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
-                request.headers().add(HttpHeaderNames.CONTENT_TYPE, "application/xml; charset=\"UTF-8\"");
-                ByteBuf bbuf = Unpooled.copiedBuffer(body, StandardCharsets.UTF_8);
-                request.headers().set(HttpHeaderNames.CONTENT_LENGTH, bbuf.readableBytes());
-                request.content().clear().writeBytes(bbuf);
-                sendHttpPUT(httpGetPutURL, request);
-            } else {
-                lock.unlock();
-            }
+        ChannelTracking tracker = channelTrackingMap.get(httpGetPutURL);
+        if (tracker != null && tracker.getReply() != null) {
+            logger.debug("An OLD reply from the camera was:{}", tracker.getReply());
+            hikSendXml(httpGetPutURL, tracker.getReply().replace(findOldValue, newValue));
         } else {
-            sendHttpGET(httpGetPutURL);
-            logger.warn(
-                    "Did not have a reply stored before hikChangeSetting was run, try again shortly as a reply has just been requested.");
+            logger.debug("Did not have a reply stored before hikChangeSetting was run, fetching one first.");
+            sendHttpGET(httpGetPutURL).thenAccept(reply -> {
+                if (reply.contains(findOldValue)) {
+                    hikSendXml(httpGetPutURL, reply.replace(findOldValue, newValue));
+                }
+            });
         }
     }
 
@@ -375,13 +444,50 @@ public class IpCameraHandler extends BaseThingHandler {
         sendHttpPUT(httpPutURL, request);
     }
 
-    public void sendHttpPUT(String httpRequestURL, FullHttpRequest request) {
-        putRequestWithBody = request; // use Global so the authhandler can use it when resent with DIGEST.
-        sendHttpRequest("PUT", httpRequestURL, null);
+    public CompletableFuture<String> sendHttpPUT(String httpRequestURL, FullHttpRequest request) {
+        CompletableFuture<String> replyFuture = new CompletableFuture<String>();
+        putBodies.put(replyFuture, request);
+        replyFuture.whenComplete((reply, error) -> {
+            FullHttpRequest body = putBodies.remove(replyFuture);
+            if (body != null) {
+                body.release();
+            }
+        });
+        return sendHttpRequest("PUT", httpRequestURL, null, RequestType.COMMAND, replyFuture);
+    }
+
+    // Each send gets its own copy of the body, as it may need to be sent again if the nonce has gone stale. Null once
+    // the reply has completed and the body has been released.
+    private FullHttpRequest duplicatePutBody(CompletableFuture<String> replyFuture) {
+        FullHttpRequest[] duplicate = new FullHttpRequest[1];
+        putBodies.computeIfPresent(replyFuture, (future, body) -> {
+            duplicate[0] = body.retainedDuplicate();
+            return body;
+        });
+        return duplicate[0];
+    }
+
+    public CompletableFuture<String> sendHttpGET(String httpRequestURL) {
+        return sendHttpRequest("GET", httpRequestURL, null);
     }
 
-    public void sendHttpGET(String httpRequestURL) {
-        sendHttpRequest("GET", httpRequestURL, null);
+    public CompletableFuture<String> sendHttpGET(String httpRequestURL, RequestType requestType) {
+        return sendHttpRequest("GET", httpRequestURL, null, requestType);
+    }
+
+    // Anything that is not the snapshot or one of the lowPriorityRequests is treated as something the user asked for.
+    private RequestType getRequestType(String httpMethod, String httpRequestURL) {
+        if (!"GET".equals(httpMethod)) {
+            return RequestType.COMMAND;
+        }
+        if (httpRequestURL.equals(snapshotUri)) {
+            return RequestType.SNAPSHOT;
+        }
+        ArrayList<String> settings = lowPriorityRequests;
+        if (settings != null && settings.contains(httpRequestURL)) {
+            return RequestType.SETTINGS;
+        }
+        return RequestType.COMMAND;
     }
 
     public int getPortFromShortenedUrl(String httpRequestURL) {
@@ -400,23 +506,67 @@ public class IpCameraHandler extends BaseThingHandler {
         return httpRequestURL;
     }
 
-    // Always use this as sendHttpGET(GET/POST/PUT/DELETE, "/foo/bar",null,false)//
+    // Always use this as sendHttpRequest(GET/POST/PUT/DELETE, "/foo/bar",null)//
     // The authHandler will use the url inside a digest string as needed.
-    public boolean sendHttpRequest(String httpMethod, String httpRequestURLFull, String digestString) {
+    // Nothing in here blocks, the returned future completes with the reply once it arrives or exceptionally if the
+    // camera could not be connected to. Replies that are JPEGs complete with an empty String as they are published
+    // to the image channel instead.
+    // A GET for a URL that is already waiting on a reply is not sent again, the caller shares the reply that is coming.
+    public CompletableFuture<String> sendHttpRequest(String httpMethod, String httpRequestURLFull,
+            String digestString) {
+        return sendHttpRequest(httpMethod, httpRequestURLFull, digestString,
+                getRequestType(httpMethod, httpRequestURLFull));
+    }
 
-        Channel ch;
-        ChannelFuture chFuture = null;
-        CommonCameraHandler commonHandler;
-        MyNettyAuthHandler authHandler;
-        AmcrestHandler amcrestHandler;
-        InstarHandler instarHandler;
+    private CompletableFuture<String> sendHttpRequest(String httpMethod, String httpRequestURLFull,
+            String digestString, RequestType requestType) {
+        if (!"GET".equals(httpMethod) || digestString != null) {
+            return sendHttpRequest(httpMethod, httpRequestURLFull, digestString, requestType,
+                    new CompletableFuture<String>());
+        }
+        CompletableFuture<String> replyFuture = new CompletableFuture<String>();
+        CompletableFuture<String> inFlight = inFlightGets.putIfAbsent(httpRequestURLFull, replyFuture);
+        if (inFlight != null) {
+            if (!inFlight.isDone()) {
+                logger.trace("Joining the GET that is already in flight for \t{}", httpRequestURLFull);
+                return inFlight;
+            }
+            // Called from a callback of the finished reply, before it has been removed.
+            inFlightGets.put(httpRequestURLFull, replyFuture);
+        }
+        replyFuture.whenComplete((reply, error) -> inFlightGets.remove(httpRequestURLFull, replyFuture));
+        return sendHttpRequest(httpMethod, httpRequestURLFull, null, requestType, replyFuture);
+    }
 
+    // Called once a reply turns out to be a stream, the next GET for the URL is then sent instead of joining it.
+    private void stopCoalescing(CompletableFuture<String> replyFuture) {
+        if (replyFuture != null) {
+            inFlightGets.values().remove(replyFuture);
+        }
+    }
+
+    // Used by the authHandler to resend a request with auth, so the original caller still gets the reply. The resend
+    // has already waited its turn once, so it goes ahead of any polls.
+    public CompletableFuture<String> sendHttpRequest(String httpMethod, String httpRequestURLFull, String digestString,
+            CompletableFuture<String> replyFuture) {
+        return sendHttpRequest(httpMethod, httpRequestURLFull, digestString, RequestType.COMMAND, replyFuture);
+    }
+
+    private CompletableFuture<String> sendHttpRequest(String httpMethod, String httpRequestURLFull,
+            String digestString, RequestType requestType, CompletableFuture<String> replyFuture) {
+        FullHttpRequest putBody = null;
+        if (httpMethod.contentEquals("PUT")) {
+            putBody = duplicatePutBody(replyFuture);
+            if (putBody == null) {
+                return replyFuture; // Already failed while it was waiting to be sent.
+            }
+        }
         int port = getPortFromShortenedUrl(httpRequestURLFull);
         String httpRequestURL = getTinyUrl(httpRequestURLFull);
 
         if (mainBootstrap == null) {
             mainBootstrap = new Bootstrap();
-            mainBootstrap.group(mainEventLoopGroup);
+            mainBootstrap.group(eventLoop);
             mainBootstrap.channel(NioSocketChannel.class);
             mainBootstrap.option(ChannelOption.SO_KEEPALIVE, true);
             mainBootstrap.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 4500);
@@ -465,14 +615,34 @@ public class IpCameraHandler extends BaseThingHandler {
             });
         }
 
+        Channel ch = connectionPool.acquire(port);
+        if (ch == null && !connectionPool.reserve()) {
+            logger.debug("All {} connections to the camera are busy, queueing {} \t{}:{}",
+                    connectionPool.getMaxConnections(), requestType, httpMethod, httpRequestURL);
+            ReferenceCountUtil.release(putBody); // Copied again when the request is run from the queue.
+            connectionPool.waitForConnection(requestType,
+                    () -> sendHttpRequest(httpMethod, httpRequestURLFull, digestString, requestType, replyFuture),
+                    replyFuture);
+            return replyFuture;
+        }
+
+        // Once the camera has sent a Digest challenge every request carries a Digest, a 401 is only expected when the
+        // camera decides the nonce is stale.
+        String digest = digestString;
+        DigestChallenge challenge = digestChallenge;
+        if (useDigestAuth && digest == null && challenge != null) {
+            digest = challenge.createDigest(username, password, httpMethod, httpRequestURL);
+        }
+
         FullHttpRequest request;
         if (httpMethod.contentEquals("PUT")) {
-            if (useDigestAuth && digestString == null) {
+            if (useDigestAuth && digest == null) {
+                putBody.release();
                 request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, new HttpMethod(httpMethod), httpRequestURL);
                 request.headers().set(HttpHeaderNames.HOST, ipAddress);
                 request.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
             } else {
-                request = putRequestWithBody;
+                request = putBody;
             }
         } else {
             request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, new HttpMethod(httpMethod), httpRequestURL);
@@ -490,117 +660,186 @@ public class IpCameraHandler extends BaseThingHandler {
         }
 
         if (useDigestAuth) {
-            if (digestString != null) {
-                logger.debug("Resending using a fresh DIGEST \tURL:{}", httpRequestURL);
-                request.headers().set(HttpHeaderNames.AUTHORIZATION, "Digest " + digestString);
+            if (digest != null) {
+                logger.trace("Sending with a DIGEST \tURL:{}", httpRequestURL);
+                request.headers().set(HttpHeaderNames.AUTHORIZATION, "Digest " + digest);
             }
         }
 
         logger.debug("Sending camera: {}: http://{}{}", httpMethod, ipAddress, httpRequestURL);
-        lock.lock();
 
-        byte indexInLists = -1;
-        try {
-            for (byte index = 0; index < listOfRequests.size(); index++) {
-                boolean done = false;
-                if (listOfRequests.get(index).equals(httpRequestURL)) {
-
-                    switch (listOfChStatus.get(index)) {
-                        case 2: // Open and ok to reuse
-                            ch = listOfChannels.get(index);
-                            if (ch.isOpen()) {
-                                logger.debug("   Using the already open channel:{} \t{}:{}", index, httpMethod,
-                                        httpRequestURL);
-                                commonHandler = (CommonCameraHandler) ch.pipeline().get("commonHandler");
-                                commonHandler.setURL(httpRequestURLFull);
-                                authHandler = (MyNettyAuthHandler) ch.pipeline().get("authHandler");
-                                authHandler.setURL(httpMethod, httpRequestURL);
-                                ch.writeAndFlush(request);
-                                request = null;
-                                return true;
-                            } else {
-                                logger.debug("!!!! Closed Channel was marked as open, channel:{} \t{}:{}", index,
-                                        httpMethod, httpRequestURL);
-                            }
+        ChannelTracking tracker = channelTrackingMap.get(httpRequestURL);
+        if (tracker == null) {
+            ChannelTracking newTracker = new ChannelTracking(httpRequestURL);
+            tracker = channelTrackingMap.putIfAbsent(httpRequestURL, newTracker);
+            if (tracker == null) {
+                tracker = newTracker;
+            }
+        }
+        if (ch != null) {
+            logger.debug("   Using an idle pooled channel for \t{}:{}", httpMethod, httpRequestURL);
+            tracker.setChannel(ch);
+            setupChannel(ch, httpMethod, httpRequestURL, digestString != null, requestType, replyFuture);
+            ch.writeAndFlush(request);
+            return replyFuture;
+        }
 
-                        case -1: // Closed
-                            indexInLists = index;
-                            listOfChStatus.set(indexInLists, (byte) 1);
-                            done = true;
-                            break;
-                    }
-                    if (done) {
-                        break;
-                    }
+        final FullHttpRequest finalRequest = request;
+        final ChannelTracking finalTracker = tracker;
+        // ChannelOption.CONNECT_TIMEOUT_MILLIS means the listener is always called, we never wait here.
+        mainBootstrap.connect(new InetSocketAddress(ipAddress, port)).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) {
+                if (!future.isSuccess()) {
+                    connectionPool.cancelReservation();
+                    ReferenceCountUtil.release(finalRequest);
+                    ConnectException connectException = new ConnectException(
+                            "Can not connect to the camera at " + ipAddress + ":" + port);
+                    connectException.initCause(future.cause());
+                    replyFuture.completeExceptionally(connectException);
+                    cameraConnectionFailed(port);
+                    return;
                 }
+                Channel newChannel = future.channel();
+                connectionPool.add(newChannel);
+                finalTracker.setChannel(newChannel);
+                setupChannel(newChannel, httpMethod, httpRequestURL, digestString != null, requestType,
+                        replyFuture);
+                logger.debug("Have  opened  a  brand NEW channel for \t{}:{}", httpMethod, httpRequestURL);
+                newChannel.writeAndFlush(finalRequest);
             }
-        } finally {
-            lock.unlock();
-        }
-
-        chFuture = mainBootstrap.connect(new InetSocketAddress(ipAddress, port));
-        // ChannelOption.CONNECT_TIMEOUT_MILLIS means this will not hang here.
-        chFuture.awaitUninterruptibly();
-
-        if (!chFuture.isSuccess()) {
-            updateStatus(ThingStatus.OFFLINE, ThingStatusDetail.COMMUNICATION_ERROR,
-                    "Connection Timeout: Check your IP is correct and the camera can be reached.");
-            restart();
-            if (isOnline) {
-                logger.error("Can not connect with HTTP to the camera at {}:{} check your network for issues!",
-                        ipAddress, port);
-                isOnline = false; // Stop multiple errors when camera takes a while to connect.
-                cameraConnectionJob = cameraConnection.schedule(pollingCameraConnection, 8, TimeUnit.SECONDS);
-            } else {
-                cameraConnectionJob = cameraConnection.schedule(pollingCameraConnection, 56, TimeUnit.SECONDS);
-            }
-            return false;
-        }
+        });
+        return replyFuture;
+    }
 
-        ch = chFuture.channel();
-        commonHandler = (CommonCameraHandler) ch.pipeline().get("commonHandler");
-        authHandler = (MyNettyAuthHandler) ch.pipeline().get("authHandler");
+    // Points every handler in the pipeline at the request that is about to be written down the channel.
+    private void setupChannel(Channel ch, String httpMethod, String httpRequestURL, boolean isResend,
+            RequestType requestType, CompletableFuture<String> replyFuture) {
+        ch.attr(ChannelTracking.REPLY_FUTURE).set(replyFuture);
+        ch.attr(ChannelTracking.REQUEST_TYPE).set(requestType);
+        ch.attr(ChannelTracking.REQUEST_SENT).set(System.nanoTime());
+        ChannelTracking.startDeadline(ch, () -> requestTimedOut(ch, httpRequestURL, requestType, replyFuture),
+                requestType.getDeadlineMs());
+        CommonCameraHandler commonHandler = (CommonCameraHandler) ch.pipeline().get("commonHandler");
         commonHandler.setURL(httpRequestURL);
+        MyNettyAuthHandler authHandler = (MyNettyAuthHandler) ch.pipeline().get("authHandler");
         authHandler.setURL(httpMethod, httpRequestURL);
+        authHandler.setResend(isResend);
 
         switch (thing.getThingTypeUID().getId()) {
             case "AMCREST":
-                amcrestHandler = (AmcrestHandler) ch.pipeline().get("amcrestHandler");
+                AmcrestHandler amcrestHandler = (AmcrestHandler) ch.pipeline().get("amcrestHandler");
                 amcrestHandler.setURL(httpRequestURL);
                 break;
             case "INSTAR":
-                instarHandler = (InstarHandler) ch.pipeline().get("instarHandler");
+                InstarHandler instarHandler = (InstarHandler) ch.pipeline().get("instarHandler");
                 instarHandler.setURL(httpRequestURL);
                 break;
         }
+    }
 
-        if (indexInLists >= 0) {
-            lock.lock();
-            try {
-                listOfChannels.set(indexInLists, ch);
-            } finally {
-                lock.unlock();
+    // Can be called from many netty threads at once when a camera drops off the network, only one reconnect is kept.
+    private synchronized void cameraConnectionFailed(int port) {
+        if (cameraConnectionJob != null && cameraConnectionJob.getDelay(TimeUnit.MILLISECONDS) > 0) {
+            return; // A reconnect is already scheduled.
+        }
+        updateStatus(ThingStatus.OFFLINE, ThingStatusDetail.COMMUNICATION_ERROR,
+                "Connection Timeout: Check your IP is correct and the camera can be reached.");
+        if (isOnline) {
+            logger.error("Can not connect with HTTP to the camera at {}:{} check your network for issues!",
+                    ipAddress, port);
+            isOnline = false; // Stop multiple errors when camera takes a while to connect.
+        }
+        // Only the polling is stopped, the stream server and ffmpeg are left running as most outages are short. Streams
+        // that are still open are left alone too, they are only closed once the probe finds the camera is gone.
+        if (pollCameraJob != null) {
+            pollCameraJob.cancel(false);
+            pollCameraJob = null;
+        }
+        scheduleReconnect();
+    }
+
+    // Backs off exponentially with jitter, so cameras that dropped off together (switch reboot) do not retry together.
+    private synchronized void scheduleReconnect() {
+        long delayMs = Math.min(RECONNECT_MAX_DELAY_MS, RECONNECT_BASE_DELAY_MS << Math.min(reconnectAttempts, 16));
+        reconnectAttempts++;
+        delayMs = delayMs / 2 + ThreadLocalRandom.current().nextLong(delayMs / 2 + 1);
+        logger.debug("Will try to reconnect to the camera at {} in {}ms, attempt {}", ipAddress, delayMs,
+                reconnectAttempts);
+        cameraConnectionJob = cameraScheduler.schedule(pollingCameraConnection, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    // A plain TCP connect costs the camera far less than ONVIF and a snapshot, so only do those once this works.
+    private void probeCamera(Runnable onReachable) {
+        if (probeBootstrap == null) {
+            probeBootstrap = new Bootstrap();
+            probeBootstrap.group(eventLoop);
+            probeBootstrap.channel(NioSocketChannel.class);
+            probeBootstrap.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 4500);
+            probeBootstrap.handler(new ChannelInboundHandlerAdapter());
+        }
+        int port = Integer.parseInt(config.get(CONFIG_PORT).toString());
+        probeBootstrap.connect(new InetSocketAddress(ipAddress, port)).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) {
+                if (future.isSuccess()) {
+                    future.channel().close();
+                    cameraScheduler.execute(onReachable);
+                } else {
+                    logger.debug("Camera at {}:{} can not be reached yet.", ipAddress, port);
+                    updateStatus(ThingStatus.OFFLINE, ThingStatusDetail.COMMUNICATION_ERROR,
+                            "Connection Timeout: Check your IP is correct and the camera can be reached.");
+                    closeAllChannels();
+                    scheduleReconnect();
+                }
             }
-            logger.debug("Have re-opened  the closed channel:{} \t{}:{}", indexInLists, httpMethod, httpRequestURL);
-        } else {
-            lock.lock();
-            try {
-                listOfRequests.add(httpRequestURL);
-                listOfChannels.add(ch);
-                listOfChStatus.add((byte) 1);
-                listOfReplies.add(null);
-            } finally {
-                lock.unlock();
+        });
+    }
+
+    // Completes the future of the request that this channel is currently serving. The channel is released first so
+    // anything chained on the reply can use it, which is why the future is taken off the channel before that.
+    private void completeReply(Channel channel, String reply) {
+        CompletableFuture<String> replyFuture = channel.attr(ChannelTracking.REPLY_FUTURE).getAndSet(null);
+        releaseChannel(channel);
+        if (replyFuture != null) {
+            Long sent = channel.attr(ChannelTracking.REQUEST_SENT).get();
+            RequestType requestType = channel.attr(ChannelTracking.REQUEST_TYPE).get();
+            if (sent != null && requestType != null) {
+                requestLatency.get(requestType).recordMicros((System.nanoTime() - sent) / 1000);
             }
-            logger.debug("Have  opened  a  brand NEW channel:{} \t{}:{}", listOfRequests.size() - 1, httpMethod,
-                    httpRequestURL);
+            replyFuture.complete(reply);
         }
+    }
+
+    // The camera accepted the request but did not finish the reply in time. The channel can not be re-used as the
+    // late reply may still arrive, so it is closed which also hands its pool slot to any waiting request.
+    private void requestTimedOut(Channel channel, String httpRequestURL, RequestType requestType,
+            CompletableFuture<String> replyFuture) {
+        if (!channel.attr(ChannelTracking.REPLY_FUTURE).compareAndSet(replyFuture, null)) {
+            return; // The reply finished as the deadline fired.
+        }
+        requestLatency.get(requestType).recordTimeout();
+        logger.debug("Camera at {} did not reply to a {} request within {}ms, closing the channel \tURL:{}",
+                ipAddress, requestType, requestType.getDeadlineMs(), httpRequestURL);
+        ChannelTracking tracker = getTracker(channel);
+        if (tracker != null && tracker.isTracking(channel)) {
+            tracker.setStatus(ChannelTracking.Status.CLOSING);
+        }
+        channel.close();
+        replyFuture.completeExceptionally(new TimeoutException("The camera did not reply to " + httpRequestURL
+                + " within " + requestType.getDeadlineMs() + "ms"));
+    }
 
-        ch.writeAndFlush(request);
-        // Cleanup
-        request = null;
-        chFuture = null;
-        return true;
+    // A keep-alive channel that has finished its reply goes back to the pool, ready for any URL. Any other channel is
+    // closed now, as it would otherwise hold its pool slot until the camera or the idle timeout closes it.
+    public void releaseChannel(Channel channel) {
+        ChannelTracking.cancelDeadline(channel);
+        ChannelTracking tracker = getTracker(channel);
+        if (tracker != null && tracker.releaseChannel(channel)) {
+            connectionPool.release(channel);
+        } else if (tracker == null || tracker.getStatus() == ChannelTracking.Status.CLOSING) {
+            channel.close();
+        }
     }
 
     // These methods handle the response from all Camera brands, nothing specific to
@@ -608,18 +847,35 @@ public class IpCameraHandler extends BaseThingHandler {
     private class CommonCameraHandler extends ChannelDuplexHandler {
         private int bytesToRecieve = 0;
         private int bytesAlreadyRecieved = 0;
-        private byte[] lastSnapshot;
+        // The JPEG as it arrives, each piece is kept as it came off the socket and only copied once it is complete.
+        private CompositeByteBuf lastSnapshot;
+        private MjpegFrameDecoder mjpegDecoder;
         private String incomingMessage;
         private String contentType = "empty";
         private Object reply = null;
         private String requestUrl;
         private boolean closeConnection = true;
         private boolean isChunked = false;
+        private boolean authChallenge = false;
 
         public void setURL(String url) {
             requestUrl = url;
         }
 
+        private void releaseSnapshot() {
+            if (lastSnapshot != null) {
+                lastSnapshot.release();
+                lastSnapshot = null;
+            }
+        }
+
+        private void releaseDecoder() {
+            if (mjpegDecoder != null) {
+                mjpegDecoder.release();
+                mjpegDecoder = null;
+            }
+        }
+
         @Override
         public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
             HttpContent content = null;
@@ -627,7 +883,21 @@ public class IpCameraHandler extends BaseThingHandler {
                 logger.trace(msg.toString());
                 if (msg instanceof HttpResponse) {
                     HttpResponse response = (HttpResponse) msg;
-                    if (response.status().code() != 401) {
+                    // Channels are re-used for other URLs, so nothing from the last reply can be carried over.
+                    reply = null;
+                    incomingMessage = null;
+                    releaseSnapshot();
+                    releaseDecoder();
+                    contentType = "empty";
+                    bytesToRecieve = 0;
+                    bytesAlreadyRecieved = 0;
+                    closeConnection = true;
+                    isChunked = false;
+                    // The authHandler resends a 401 and hands the reply future on, so it must not be completed.
+                    authChallenge = (response.status().code() == 401);
+                    if (!authChallenge) {
+                        // HTTP/1.1 is keep-alive unless the camera says close, many cameras leave the header out.
+                        closeConnection = !HttpUtil.isKeepAlive(response);
                         if (!response.headers().isEmpty()) {
                             for (String name : response.headers().names()) {
                                 switch (name.toLowerCase()) { // Possible localization issues doing this
@@ -637,20 +907,6 @@ public class IpCameraHandler extends BaseThingHandler {
                                     case "content-length":
                                         bytesToRecieve = Integer.parseInt(response.headers().getAsString(name));
                                         break;
-                                    case "connection":
-                                        if (response.headers().getAsString(name).contains("keep-alive")) {
-                                            closeConnection = false;
-                                            lock.lock();
-                                            try {
-                                                byte indexInLists = (byte) listOfChannels.indexOf(ctx.channel());
-                                                if (indexInLists >= 0) {
-                                                    listOfChStatus.set(indexInLists, (byte) 2);
-                                                }
-                                            } finally {
-                                                lock.unlock();
-                                            }
-                                        }
-                                        break;
                                     case "transfer-encoding":
                                         if (response.headers().getAsString(name).contains("chunked")) {
                                             isChunked = true;
@@ -660,28 +916,28 @@ public class IpCameraHandler extends BaseThingHandler {
                             }
                             if (contentType.contains("multipart")) {
                                 closeConnection = false;
+                                // Streams never finish a reply, so they must not hold one of the pooled connections.
+                                connectionPool.detach(ctx.channel());
+                                ChannelTracking.cancelDeadline(ctx.channel());
+                                // Its reply future only ends when the channel closes, so no later GET may join it.
+                                stopCoalescing(ctx.channel().attr(ChannelTracking.REPLY_FUTURE).get());
                                 if (mjpegUri.contains(requestUrl)) {
-                                    if (msg instanceof HttpMessage) {
-                                        // logger.debug("First stream packet back from camera is HttpMessage:{}",
-                                        // msg);
-                                        ReferenceCountUtil.retain(msg, 2);
-                                        // very start of stream only
-                                        firstStreamedMsg = msg;
-                                        stream(msg);
-                                    }
+                                    mjpegDecoder = new MjpegFrameDecoder(contentType, ctx.alloc(),
+                                            frame -> streamFrame(frame));
                                 }
                             } else if (closeConnection) {
-                                lock.lock();
-                                try {
-                                    byte indexInLists = (byte) listOfChannels.indexOf(ctx.channel());
-                                    if (indexInLists >= 0) {
-                                        listOfChStatus.set(indexInLists, (byte) 0);
-                                    } else {
-                                        logger.debug("!!!! Could not find the ch for a Connection: close URL:{}",
-                                                requestUrl);
-                                    }
-                                } finally {
-                                    lock.unlock();
+                                ChannelTracking tracker = getTracker(ctx.channel());
+                                if (tracker != null) {
+                                    tracker.setStatus(ChannelTracking.Status.CLOSING);
+                                } else {
+                                    logger.debug("!!!! Could not find the ch for a Connection: close URL:{}",
+                                            requestUrl);
+                                }
+                            } else {
+                                ChannelTracking tracker = getTracker(ctx.channel());
+                                if (tracker != null) {
+                                    tracker.compareAndSetStatus(ChannelTracking.Status.OPEN,
+                                            ChannelTracking.Status.REUSABLE);
                                 }
                             }
                         }
@@ -691,37 +947,36 @@ public class IpCameraHandler extends BaseThingHandler {
                 if (msg instanceof HttpContent) {
                     if (mjpegUri.contains(requestUrl)) {
                         // multiple MJPEG stream packets come back as this.
-                        // logger.trace("Stream packets back from camera is :{}", msg);
-                        ReferenceCountUtil.retain(msg, 1);
-                        stream(msg);
+                        if (mjpegDecoder != null) {
+                            mjpegDecoder.decode(((HttpContent) msg).content());
+                        }
                     } else {
                         content = (HttpContent) msg;
                         // Found a TP Link camera uses Content-Type: image/jpg instead of image/jpeg
                         if (contentType.contains("image/jp")) {
-                            if (bytesToRecieve == 0) {
-                                bytesToRecieve = 768000; // 0.768 Mbyte when no Content-Length is sent
-                                logger.debug("Camera has no Content-Length header, we have to guess how much RAM.");
-                            }
-                            for (int i = 0; i < content.content().capacity(); i++) {
+                            if (content.content().isReadable()) {
                                 if (lastSnapshot == null) {
-                                    lastSnapshot = new byte[bytesToRecieve];
+                                    lastSnapshot = ctx.alloc().compositeBuffer(MAX_SNAPSHOT_COMPONENTS);
                                 }
-                                lastSnapshot[bytesAlreadyRecieved++] = content.content().getByte(i);
+                                // The msg is released below, the composite keeps its own reference to the bytes.
+                                lastSnapshot.addComponent(true, content.content().retain());
+                                bytesAlreadyRecieved = lastSnapshot.readableBytes();
                             }
-                            if (bytesAlreadyRecieved > bytesToRecieve) {
+                            if (bytesToRecieve > 0 && bytesAlreadyRecieved > bytesToRecieve) {
                                 logger.error("We got too much data from the camera, please report this.");
                             }
 
                             if (content instanceof LastHttpContent) {
                                 if (contentType.contains("image/jp") && bytesAlreadyRecieved != 0) {
+                                    // The one copy, RawType needs a byte[] and the frame shares the same array.
+                                    byte[] snapshot = ByteBufUtil.getBytes(lastSnapshot);
+                                    releaseSnapshot();
+                                    int hash = XxHash32.hash(snapshot, 0, snapshot.length, 0);
                                     if (updateImage) {
-                                        updateState(CHANNEL_IMAGE, new RawType(lastSnapshot, "image/jpeg"));
-                                    }
-                                    if (preroll > 0) {
-                                        fifoSnapshotBuffer.add(lastSnapshot);
+                                        updateImageChannel(snapshot, hash);
                                     }
-                                    currentSnapshot = lastSnapshot;
-                                    lastSnapshot = null;
+                                    publishSnapshot(snapshot, hash);
+                                    completeReply(ctx.channel(), "");
                                     if (closeConnection) {
                                         logger.debug("Snapshot recieved: Binding will now close the channel.");
                                         ctx.close();
@@ -765,6 +1020,9 @@ public class IpCameraHandler extends BaseThingHandler {
                                 bytesAlreadyRecieved = 0;
                                 super.channelRead(ctx, reply);
                             }
+                            if (content instanceof LastHttpContent && !authChallenge) {
+                                completeReply(ctx.channel(), (reply == null) ? "" : reply.toString());
+                            }
                         }
                     }
                 } else { // msg is not HttpContent
@@ -797,21 +1055,17 @@ public class IpCameraHandler extends BaseThingHandler {
 
         @Override
         public void handlerRemoved(ChannelHandlerContext ctx) {
-            lock.lock();
-            try {
-                byte indexInLists = (byte) listOfChannels.indexOf(ctx.channel());
-                if (indexInLists >= 0) {
-                    logger.debug("commonCameraHandler closed channel:{} \tURL:{}", indexInLists, requestUrl);
-                    listOfChStatus.set(indexInLists, (byte) -1);
-                } else {
-                    if (listOfChannels.size() > 0) {
-                        logger.warn("Can't find ch when removing handler \t\tURL:{}", requestUrl);
-                    }
-                }
-            } finally {
-                lock.unlock();
+            ChannelTracking tracker = getTracker(ctx.channel());
+            if (tracker != null) {
+                logger.debug("commonCameraHandler closed channel \tURL:{}", requestUrl);
+                tracker.setStatus(ChannelTracking.Status.CLOSED);
             }
-            lastSnapshot = null;
+            CompletableFuture<String> replyFuture = ctx.channel().attr(ChannelTracking.REPLY_FUTURE).getAndSet(null);
+            if (replyFuture != null) {
+                replyFuture.completeExceptionally(new ClosedChannelException());
+            }
+            releaseSnapshot();
+            releaseDecoder();
             bytesAlreadyRecieved = 0;
             contentType = null;
             reply = null;
@@ -819,16 +1073,11 @@ public class IpCameraHandler extends BaseThingHandler {
 
         @Override
         public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
-            lock.lock();
-            try {
-                byte indexInLists = (byte) listOfChannels.indexOf(ctx.channel());
-                if (indexInLists >= 0) {
-                    listOfChStatus.set(indexInLists, (byte) -1);
-                } else {
-                    logger.warn("!!!! exceptionCaught could not locate the channel to close it down");
-                }
-            } finally {
-                lock.unlock();
+            ChannelTracking tracker = getTracker(ctx.channel());
+            if (tracker != null) {
+                tracker.setStatus(ChannelTracking.Status.CLOSED);
+            } else {
+                logger.warn("!!!! exceptionCaught could not locate the channel to close it down");
             }
             logger.warn("!!!! Camera has closed the channel \tURL:{} Cause reported is: {}", requestUrl, cause);
             ctx.close();
@@ -840,41 +1089,31 @@ public class IpCameraHandler extends BaseThingHandler {
                 IdleStateEvent e = (IdleStateEvent) evt;
                 // If camera does not use the channel for X amount of time it will close.
                 if (e.state() == IdleState.READER_IDLE) {
-
-                    lock.lock();
-                    try {
-                        byte indexInLists = (byte) listOfChannels.indexOf(ctx.channel());
-                        if (indexInLists >= 0) {
-                            String urlToKeepOpen;
-                            switch (thing.getThingTypeUID().getId()) {
-                                case "DAHUA":
-                                    urlToKeepOpen = listOfRequests.get(indexInLists);
-                                    if ("/cgi-bin/eventManager.cgi?action=attach&codes=[All]"
-                                            .contentEquals(urlToKeepOpen)) {
-                                        return;
-                                    }
-                                    break;
-                                case "HIKVISION":
-                                    urlToKeepOpen = listOfRequests.get(indexInLists);
-                                    if ("/ISAPI/Event/notification/alertStream".contentEquals(urlToKeepOpen)) {
-                                        return;
-                                    }
-                                    break;
-                                case "DOORBIRD":
-                                    urlToKeepOpen = listOfRequests.get(indexInLists);
-                                    if ("/bha-api/monitor.cgi?ring=doorbell,motionsensor"
-                                            .contentEquals(urlToKeepOpen)) {
-                                        return;
-                                    }
-                                    break;
-                            }
-                            logger.debug("! Channel was found idle for more than 15 seconds so closing it down. !");
-                            listOfChStatus.set(indexInLists, (byte) 0);
-                        } else {
-                            logger.warn("!?! Channel that was found idle could not be located in our tracking. !?!");
+                    ChannelTracking tracker = getTracker(ctx.channel());
+                    if (tracker != null) {
+                        String urlToKeepOpen = tracker.getRequestUrl();
+                        switch (thing.getThingTypeUID().getId()) {
+                            case "DAHUA":
+                                if ("/cgi-bin/eventManager.cgi?action=attach&codes=[All]"
+                                        .contentEquals(urlToKeepOpen)) {
+                                    return;
+                                }
+                                break;
+                            case "HIKVISION":
+                                if ("/ISAPI/Event/notification/alertStream".contentEquals(urlToKeepOpen)) {
+                                    return;
+                                }
+                                break;
+                            case "DOORBIRD":
+                                if ("/bha-api/monitor.cgi?ring=doorbell,motionsensor".contentEquals(urlToKeepOpen)) {
+                                    return;
+                                }
+                                break;
                         }
-                    } finally {
-                        lock.unlock();
+                        logger.debug("! Channel was found idle for more than 15 seconds so closing it down. !");
+                        tracker.setStatus(ChannelTracking.Status.CLOSING);
+                    } else {
+                        logger.debug("Closing a channel that was left idle in the connection pool.");
                     }
                     ctx.close();
 
@@ -889,46 +1128,36 @@ public class IpCameraHandler extends BaseThingHandler {
     public void startStreamServer(boolean start) {
 
         if (!start) {
-            serversLoopGroup.shutdownGracefully(8, 8, TimeUnit.SECONDS);
+            streamServerChannels.close();
             serverBootstrap = null;
         } else {
             if (serverBootstrap == null) {
-                InetAddress inet;
-                try {
-                    inet = InetAddress.getLocalHost();
-                    InetAddress[] ipConnections = InetAddress.getAllByName(inet.getCanonicalHostName());
-                    if (ipConnections != null) {
-                        for (int i = 0; i < ipConnections.length; i++) {
-                            if (ipConnections[i].isSiteLocalAddress()) {
-                                hostIp = ipConnections[i].getHostAddress();
-                                // logger.debug("Stream Server is serving on IP:{}", ip);
-                            }
-                        }
-                    }
-                    ipConnections = null;
-                } catch (UnknownHostException e2) {
-                    logger.error("Stream Server has an error finding an IP:{}", e2);
-                }
-                inet = null;
-
+                // Worked out once for all cameras, as it can block on DNS.
+                hostIp = sharedStreamServer.getHostIp();
                 try {
-                    serversLoopGroup = new NioEventLoopGroup();
                     serverBootstrap = new ServerBootstrap();
-                    serverBootstrap.group(serversLoopGroup);
+                    serverBootstrap.group(eventLoop);
                     serverBootstrap.channel(NioServerSocketChannel.class);
+                    // An MJPEG viewer above the high mark skips frames until it is back below the low mark.
+                    serverBootstrap.childOption(ChannelOption.WRITE_BUFFER_WATER_MARK,
+                            new WriteBufferWaterMark(512 * 1024, 2 * 1024 * 1024));
                     // IP "0.0.0.0" will bind the server to all network connections//
                     serverBootstrap.localAddress(new InetSocketAddress(hostIp, serverPort));
                     serverBootstrap.childHandler(new ChannelInitializer<SocketChannel>() {
                         @Override
                         protected void initChannel(SocketChannel socketChannel) throws Exception {
+                            streamServerChannels.add(socketChannel);
+                            // Refused connections are closed before any HTTP is decoded.
+                            socketChannel.pipeline().addLast("ipWhitelist",
+                                    new IpWhitelistFilter(IpCameraHandler.this::isIpAllowed));
                             socketChannel.pipeline().addLast("idleStateHandler", new IdleStateHandler(0, 10, 0));
                             socketChannel.pipeline().addLast("HttpServerCodec", new HttpServerCodec());
-                            socketChannel.pipeline().addLast("ChunkedWriteHandler", new ChunkedWriteHandler());
                             socketChannel.pipeline()
                                     .addLast(new StreamServerHandler((IpCameraHandler) thing.getHandler()));
                         }
                     });
                     serverFuture = serverBootstrap.bind().sync();
+                    streamServerChannels.add(serverFuture.channel());
                     serverFuture.await(4000);
                     logger.info("IpCamera file server for camera {} has started on port {}", ipAddress, serverPort);
                     updateState(CHANNEL_STREAM_URL,
@@ -942,49 +1171,450 @@ public class IpCameraHandler extends BaseThingHandler {
         }
     }
 
+    // Cameras without their own SERVER_PORT are served by the binding's server under /<thingId>/ when it is on.
+    private void useSharedStreamServer() {
+        if (sharedStreamServer.getPort() > 0) {
+            hostIp = sharedStreamServer.getHostIp();
+            String cameraUrl = sharedStreamServer.getCameraUrl(getThing().getUID().getId());
+            updateState(CHANNEL_STREAM_URL, new StringType(cameraUrl + "/ipcamera.mjpeg"));
+            updateState(CHANNEL_HLS_URL, new StringType(cameraUrl + "/ipcamera.m3u8"));
+        }
+    }
+
     // If start is true the CTX is added to the list to stream video to, false stops
     // the stream.
+    // The stream server may attach a MjpegViewer to the channel first, to ask for a lower frame rate or size.
     public void setupMjpegStreaming(boolean start, ChannelHandlerContext ctx) {
         if (start) {
-            mjpegChannelGroup.add(ctx.channel());
-            if (mjpegChannelGroup.size() == 1) {
-                sendHttpGET(mjpegUri);
-            } else if (firstStreamedMsg != null) {
-                ctx.channel().writeAndFlush(firstStreamedMsg);
+            HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+            response.headers().add(HttpHeaderNames.CONTENT_TYPE,
+                    "multipart/x-mixed-replace; boundary=" + MJPEG_BOUNDARY);
+            response.headers().set(HttpHeaderNames.CACHE_CONTROL, HttpHeaderValues.NO_CACHE);
+            response.headers().add("Access-Control-Allow-Origin", "*");
+            ctx.channel().writeAndFlush(response);
+            ctx.channel().attr(MjpegViewer.VIEWER).setIfAbsent(new MjpegViewer(ctx.channel(), 0, 0));
+            MjpegViewer viewer = ctx.channel().attr(MjpegViewer.VIEWER).get();
+            synchronized (mjpegChannelGroup) {
+                mjpegChannelGroup.add(ctx.channel());
+                if (mjpegLingerJob != null) {
+                    mjpegLingerJob.cancel(false);
+                    mjpegLingerJob = null;
+                }
+                startMjpegSource();
             }
+            // Queued after joining the group, a live frame that gets to the viewer first makes this one be skipped.
+            eventLoop.execute(() -> sendFirstMjpegFrame(viewer));
         } else {
             mjpegChannelGroup.remove(ctx.channel());
-            if (mjpegChannelGroup.isEmpty()) {
+            MjpegViewer viewer = ctx.channel().attr(MjpegViewer.VIEWER).getAndSet(null);
+            if (viewer != null) {
+                logger.debug("MJPEG viewer has left {}", viewer);
+                if (viewer.getWidth() > 0 && !isWidthWanted(viewer.getWidth())) {
+                    scaledMjpegVariants.remove(viewer.getWidth());
+                }
+            }
+            synchronized (mjpegChannelGroup) {
+                lingerMjpegSource();
+            }
+        }
+    }
+
+    // A mosaic showing this camera needs frames from it, even with nobody watching the camera on its own.
+    public void setupMosaicSource(boolean start) {
+        synchronized (mjpegChannelGroup) {
+            if (start) {
+                mjpegMosaicCount++;
+                if (mjpegLingerJob != null) {
+                    mjpegLingerJob.cancel(false);
+                    mjpegLingerJob = null;
+                }
+                startMjpegSource();
+            } else {
+                mjpegMosaicCount = Math.max(0, mjpegMosaicCount - 1);
+                lingerMjpegSource();
+            }
+        }
+    }
+
+    private boolean isMjpegWatched() {
+        return !mjpegChannelGroup.isEmpty() || mjpegMosaicCount > 0;
+    }
+
+    // Must be called holding the lock on mjpegChannelGroup.
+    private void lingerMjpegSource() {
+        if (!isMjpegWatched() && !mjpegAlwaysOn && mjpegLingerJob == null) {
+            if (mjpegLingerMs > 0) {
+                logger.debug("All MJPEG streams have stopped, closing the MJPEG source in {}ms.", mjpegLingerMs);
+                mjpegLingerJob = cameraScheduler.schedule(this::closeUnwatchedMjpegSource, mjpegLingerMs,
+                        TimeUnit.MILLISECONDS);
+            } else {
+                closeUnwatchedMjpegSource();
+            }
+        }
+    }
+
+    // A stream that is open is left alone, one that is closing counts as stopped so a new one is opened. Asking again
+    // before the camera has replied joins the GET in flight instead of opening a second stream.
+    private void startMjpegSource() {
+        if (isSnapshotMjpeg()) {
+            if (snapshotMjpegJob == null) {
+                logger.debug("Camera {} has no MJPEG stream, making one from a snapshot every {}ms.", ipAddress,
+                        snapshotMjpegIntervalMs);
+                snapshotMjpegJob = cameraScheduler.scheduleWithFixedDelay(() -> sendHttpGET(snapshotUri), 0,
+                        snapshotMjpegIntervalMs, TimeUnit.MILLISECONDS);
+            }
+        } else if (!"noUrlGiven".equals(mjpegUri) && streamIsStopped(getTinyUrl(mjpegUri))) {
+            lastMjpegFrameTime = System.currentTimeMillis();
+            sendHttpGET(mjpegUri);
+        }
+    }
+
+    private void closeUnwatchedMjpegSource() {
+        synchronized (mjpegChannelGroup) {
+            mjpegLingerJob = null;
+            if (!isMjpegWatched() && !mjpegAlwaysOn) {
                 logger.debug("All MJPEG streams have stopped, so closing the MJPEG source stream now.");
-                closeChannel(getTinyUrl(mjpegUri));
+                stopSnapshotMjpeg();
+                if (!"noUrlGiven".equals(mjpegUri)) {
+                    closeStream(mjpegUri);
+                }
             }
         }
     }
 
-    public void stream(Object msg) {
+    private void stopSnapshotMjpeg() {
+        synchronized (mjpegChannelGroup) {
+            if (snapshotMjpegJob != null) {
+                snapshotMjpegJob.cancel(false);
+                snapshotMjpegJob = null;
+            }
+        }
+    }
+
+    private boolean isSnapshotMjpeg() {
+        return "noUrlGiven".equals(mjpegUri) && snapshotUri != null && snapshotMjpegIntervalMs > 0;
+    }
+
+    // False if there is neither a MJPEG stream nor snapshots to make one from.
+    public boolean canStreamMjpeg() {
+        return !"noUrlGiven".equals(mjpegUri) || isSnapshotMjpeg();
+    }
+
+    // A viewer gets a picture straight away instead of waiting for the camera. This is the last frame of the stream, or
+    // the last snapshot if that is newer, as the stream may not have been running. Live frames follow on.
+    private void sendFirstMjpegFrame(MjpegViewer viewer) {
+        if (viewer.getFramesSent() > 0) {
+            return; // Live frames have already started.
+        }
+        JpegFrame frame = newestFrame();
+        if (frame == null) {
+            return;
+        }
         try {
-            ReferenceCountUtil.retain(msg, 1);
-            mjpegChannelGroup.writeAndFlush(msg);
+            if (!viewer.getChannel().isActive()) {
+                return;
+            }
+            if (viewer.getWidth() > 0) {
+                streamScaledFrame(frame, viewer.getWidth(), Collections.singletonList(viewer));
+                return;
+            }
+            ByteBuf partHeader = createMjpegPartHeader(frame);
+            try {
+                viewer.offer(partHeader, frame);
+            } finally {
+                partHeader.release();
+            }
         } finally {
-            ReferenceCountUtil.release(msg);
+            frame.release();
+        }
+    }
+
+    // Only on the event loop. The newer of the last stream frame and the last snapshot, retained, or null if neither.
+    private JpegFrame newestFrame() {
+        JpegFrame frame = (lastMjpegFrame == null) ? null : lastMjpegFrame.retain();
+        JpegFrame snapshot = retainSnapshot();
+        if (frame == null || (snapshot != null && snapshot.getCaptureTime() > frame.getCaptureTime())) {
+            JpegFrame older = frame;
+            frame = snapshot;
+            snapshot = older;
+        }
+        if (snapshot != null) {
+            snapshot.release();
+        }
+        return frame;
+    }
+
+    // For use off the event loop, such as by a mosaic. The caller must release the frame if it is not null.
+    public CompletableFuture<JpegFrame> retainNewestFrame() {
+        CompletableFuture<JpegFrame> future = new CompletableFuture<>();
+        try {
+            eventLoop.execute(() -> future.complete(newestFrame()));
+        } catch (RejectedExecutionException e) {
+            future.complete(null);
+        }
+        return future;
+    }
+
+    public boolean isIpAllowed(InetAddress address) {
+        return ipWhitelist.isAllowed(address);
+    }
+
+    public CameraRegistry getCameraRegistry() {
+        return cameraRegistry;
+    }
+
+    // Called with each whole JPEG the MjpegFrameDecoder finds in the camera's stream.
+    private void streamFrame(JpegFrame frame) {
+        try {
+            lastMjpegFrameTime = frame.getCaptureTime();
+            if (lastMjpegFrame != null) {
+                lastMjpegFrame.release();
+            }
+            lastMjpegFrame = frame.retain();
+            if (mjpegChannelGroup.isEmpty()) {
+                return;
+            }
+            ByteBuf partHeader = createMjpegPartHeader(frame);
+            Map<Integer, List<MjpegViewer>> scaledViewers = null;
+            try {
+                // Each viewer is written to on its own, so one that is behind can skip frames without slowing the rest.
+                for (Channel viewerChannel : mjpegChannelGroup) {
+                    MjpegViewer viewer = viewerChannel.attr(MjpegViewer.VIEWER).get();
+                    if (viewer == null || !viewer.isDue(frame.getCaptureTime())) {
+                        continue;
+                    }
+                    if (viewer.getWidth() == 0) {
+                        viewer.offer(partHeader, frame);
+                    } else {
+                        if (scaledViewers == null) {
+                            scaledViewers = new HashMap<>();
+                        }
+                        scaledViewers.computeIfAbsent(viewer.getWidth(), width -> new ArrayList<>()).add(viewer);
+                    }
+                }
+            } finally {
+                partHeader.release();
+            }
+            if (scaledViewers != null) {
+                for (Map.Entry<Integer, List<MjpegViewer>> entry : scaledViewers.entrySet()) {
+                    streamScaledFrame(frame, entry.getKey(), entry.getValue());
+                }
+            }
+        } finally {
+            frame.release();
+        }
+    }
+
+    private static ByteBuf createMjpegPartHeader(JpegFrame frame) {
+        return Unpooled.copiedBuffer("\r\n--" + MJPEG_BOUNDARY + "\r\nContent-Type: image/jpeg\r\nContent-Length: "
+                + frame.length() + "\r\n\r\n", StandardCharsets.US_ASCII);
+    }
+
+    // Scales the frame once on the image executor for every viewer that wants this width.
+    private void streamScaledFrame(JpegFrame frame, int width, List<MjpegViewer> viewers) {
+        ScaledMjpegVariant variant = scaledMjpegVariants.computeIfAbsent(width, ScaledMjpegVariant::new);
+        if (!variant.tryStart()) {
+            // Still scaling the last frame, so this one is skipped rather than queued up.
+            for (MjpegViewer viewer : viewers) {
+                viewer.frameDropped();
+            }
+            return;
+        }
+        frame.retain();
+        try {
+            imageExecutor.execute(() -> scaleFrame(frame, width, variant, viewers));
+        } catch (RejectedExecutionException e) {
+            frame.release();
+            variant.finish();
+        }
+    }
+
+    private void scaleFrame(JpegFrame frame, int width, ScaledMjpegVariant variant, List<MjpegViewer> viewers) {
+        try {
+            JpegFrame scaled = variant.scale(frame);
+            ByteBuf partHeader = createMjpegPartHeader(scaled);
+            try {
+                for (MjpegViewer viewer : viewers) {
+                    viewer.offer(partHeader, scaled);
+                }
+            } finally {
+                partHeader.release();
+                scaled.release();
+            }
+        } catch (IOException e) {
+            logger.debug("Could not scale a MJPEG frame to a width of {}: {}", width, e.getMessage());
+        } finally {
+            frame.release();
+            variant.finish();
+        }
+    }
+
+    private boolean isWidthWanted(int width) {
+        for (Channel viewerChannel : mjpegChannelGroup) {
+            MjpegViewer viewer = viewerChannel.attr(MjpegViewer.VIEWER).get();
+            if (viewer != null && viewer.getWidth() == width) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void updateImageChannel(byte[] snapshot, int hash) {
+        if (!imageChangeDetector.isPerceptual()) {
+            if (imageChangeDetector.hasChanged(snapshot, hash)) {
+                updateState(CHANNEL_IMAGE, new RawType(snapshot, "image/jpeg"));
+            }
+            return;
+        }
+        // Decoding even a small version of the JPEG is too slow to do on a netty thread.
+        synchronized (pendingImageLock) {
+            boolean checkQueued = (pendingImage != null);
+            pendingImage = snapshot;
+            pendingImageHash = hash;
+            if (checkQueued) {
+                return; // The check already queued takes this newer picture instead.
+            }
+        }
+        try {
+            imageExecutor.execute(this::checkPendingImages);
+        } catch (RejectedExecutionException e) {
+            synchronized (pendingImageLock) {
+                pendingImage = null;
+            }
+        }
+    }
+
+    private void checkPendingImages() {
+        while (true) {
+            byte[] snapshot;
+            int hash;
+            synchronized (pendingImageLock) {
+                snapshot = pendingImage;
+                hash = pendingImageHash;
+            }
+            if (imageChangeDetector.hasChanged(snapshot, hash)) {
+                updateState(CHANNEL_IMAGE, new RawType(snapshot, "image/jpeg"));
+            }
+            synchronized (pendingImageLock) {
+                if (pendingImage == snapshot) {
+                    pendingImage = null;
+                    return;
+                }
+            }
+        }
+    }
+
+    // A changed picture becomes the frame served to everything, this handler's reference to the old one is let go. A
+    // picture that has not changed keeps the old frame, so its version and capture time still match what clients have.
+    // Only called from the camera's event loop.
+    private void publishSnapshot(byte[] snapshot, int hash) {
+        JpegFrame oldFrame = currentSnapshot;
+        JpegFrame frame;
+        if (oldFrame != null && oldFrame.getHash() == hash && oldFrame.length() == snapshot.length) {
+            frame = oldFrame.retain();
+        } else {
+            frame = JpegFrame.wrap(snapshot, ++snapshotVersion, hash);
+        }
+        if (preroll > 0) {
+            synchronized (fifoSnapshotBuffer) {
+                if (fifoSnapshotBuffer.isFull()) {
+                    ((JpegFrame) fifoSnapshotBuffer.remove()).release();
+                }
+                fifoSnapshotBuffer.add(frame.retain());
+            }
+        }
+        currentSnapshot = frame;
+        if (oldFrame != null) {
+            oldFrame.release();
+        }
+        if (frame != oldFrame) {
+            Runnable waiter;
+            while ((waiter = snapshotWaiters.poll()) != null) {
+                waiter.run();
+            }
+        }
+        // Snapshots arrive on the event loop, the same as frames from a real MJPEG stream would.
+        if (snapshotMjpegJob != null) {
+            streamFrame(frame.retain());
+        }
+    }
+
+    // 0 until the first snapshot arrives.
+    public long getSnapshotVersion() {
+        JpegFrame frame = currentSnapshot;
+        return (frame == null) ? 0 : frame.getVersion();
+    }
+
+    // The waiter must hand its work to its own channel's event loop, as it is run on the camera's.
+    public void addSnapshotWaiter(Runnable waiter) {
+        snapshotWaiters.add(waiter);
+    }
+
+    public void removeSnapshotWaiter(Runnable waiter) {
+        snapshotWaiters.remove(waiter);
+    }
+
+    // Returns the latest snapshot, or null if none has arrived yet. The caller must release the frame.
+    public JpegFrame retainSnapshot() {
+        while (true) {
+            JpegFrame frame = currentSnapshot;
+            if (frame == null) {
+                return null;
+            }
+            try {
+                return frame.retain();
+            } catch (IllegalReferenceCountException e) {
+                // A newer frame was published and this one released between the read and the retain.
+            }
+        }
+    }
+
+    private void releaseSnapshots() {
+        eventLoop.execute(() -> {
+            if (lastMjpegFrame != null) {
+                lastMjpegFrame.release();
+                lastMjpegFrame = null;
+            }
+        });
+        JpegFrame oldFrame = currentSnapshot;
+        currentSnapshot = null;
+        if (oldFrame != null) {
+            oldFrame.release();
+        }
+        if (fifoSnapshotBuffer != null) {
+            synchronized (fifoSnapshotBuffer) {
+                for (Object frame : fifoSnapshotBuffer) {
+                    ((JpegFrame) frame).release();
+                }
+                fifoSnapshotBuffer.clear();
+            }
         }
     }
 
     private void storeSnapshots() {
         int count = 0;
         OutputStream fos = null;
-        for (Object lastSnapshot : fifoSnapshotBuffer) {
-            byte[] foo = (byte[]) lastSnapshot;
+        Object[] frames;
+        synchronized (fifoSnapshotBuffer) {
+            frames = fifoSnapshotBuffer.toArray();
+            for (Object frame : frames) {
+                ((JpegFrame) frame).retain();
+            }
+        }
+        for (Object frame : frames) {
+            JpegFrame jpeg = (JpegFrame) frame;
             File file = new File(config.get(CONFIG_FFMPEG_OUTPUT).toString() + "snapshot" + count + ".jpg");
             count++;
             try {
                 fos = new FileOutputStream(file);
-                fos.write(foo);
+                jpeg.content().getBytes(jpeg.content().readerIndex(), fos, jpeg.length());
                 fos.close();
             } catch (FileNotFoundException e) {
                 logger.error("FileNotFoundException {}", e);
             } catch (IOException e) {
                 logger.error("IOException {}", e);
+            } finally {
+                jpeg.release();
             }
         }
     }
@@ -1168,6 +1798,7 @@ public class IpCameraHandler extends BaseThingHandler {
                 case CHANNEL_UPDATE_IMAGE_NOW:
                     if ("ON".equals(command.toString())) {
                         updateImage = true;
+                        imageChangeDetector.reset();
                     } else {
                         updateImage = false;
                     }
@@ -1342,19 +1973,32 @@ public class IpCameraHandler extends BaseThingHandler {
     }
 
     Runnable pollingCameraConnection = new Runnable() {
+        @Override
+        public void run() {
+            probeCamera(connectCamera);
+        }
+    };
+
+    Runnable connectCamera = new Runnable() {
         @Override
         public void run() {
 
             if (thing.getThingTypeUID().getId().equals("HTTPONLY")) {
                 if (!snapshotUri.isEmpty()) {
                     logger.debug("Camera at {} has a snapshot address of:{}:", ipAddress, snapshotUri);
-                    if (sendHttpRequest("GET", snapshotUri, null)) {
+                    // The reply comes back on a netty thread, so hop back to this scheduler to bring the camera
+                    // online as starting the stream server can take a while.
+                    sendHttpRequest("GET", snapshotUri, null).whenCompleteAsync((reply, error) -> {
+                        if (error != null) {
+                            cameraConnectionClosed(error);
+                            return;
+                        }
                         updateStatus(ThingStatus.ONLINE);
                         isOnline = true;
+                        reconnectAttempts = 0;
                         logger.info("IP Camera at {} is now online.", ipAddress);
-                        pollCameraJob = pollCamera.scheduleAtFixedRate(pollingCamera, 5000,
+                        pollCameraJob = cameraScheduler.scheduleAtFixedRate(pollingCamera, 5000,
                                 Integer.parseInt(config.get(CONFIG_POLL_CAMERA_MS).toString()), TimeUnit.MILLISECONDS);
-                        sendHttpGET(snapshotUri);
                         updateState(CHANNEL_IMAGE_URL, new StringType("http://" + ipAddress + snapshotUri));
 
                         if (updateImage) {
@@ -1363,11 +2007,12 @@ public class IpCameraHandler extends BaseThingHandler {
 
                         if (!"-1".contentEquals(config.get(CONFIG_SERVER_PORT).toString())) {
                             startStreamServer(true);
+                        } else {
+                            useSharedStreamServer();
                         }
 
-                        cameraConnectionJob.cancel(false);
                         cameraConnectionJob = null;
-                    }
+                    }, cameraScheduler);
                 }
                 return;
             }
@@ -1507,7 +2152,11 @@ public class IpCameraHandler extends BaseThingHandler {
             // We may be able to skip ONVIF if we have already tried and connected or failed
             // previously.
             if (snapshotUri != null) {
-                if (sendHttpRequest("GET", snapshotUri, null)) {
+                sendHttpRequest("GET", snapshotUri, null).whenCompleteAsync((reply, error) -> {
+                    if (error != null) {
+                        cameraConnectionClosed(error);
+                        return;
+                    }
                     updateState(CHANNEL_IMAGE_URL, new StringType("http://" + ipAddress + snapshotUri));
                     if (rtspUri != null) {
                         updateState(CHANNEL_RTSP_URL, new StringType(rtspUri));
@@ -1515,18 +2164,20 @@ public class IpCameraHandler extends BaseThingHandler {
                     if (updateImage) {
                         updateState(CHANNEL_UPDATE_IMAGE_NOW, OnOffType.valueOf("ON"));
                     }
-                    pollCameraJob = pollCamera.scheduleAtFixedRate(pollingCamera, 7000,
+                    pollCameraJob = cameraScheduler.scheduleAtFixedRate(pollingCamera, 7000,
                             Integer.parseInt(config.get(CONFIG_POLL_CAMERA_MS).toString()), TimeUnit.MILLISECONDS);
                     // Instar needs the host IP before thing comes online.
                     if (!"-1".contentEquals(config.get(CONFIG_SERVER_PORT).toString())) {
                         startStreamServer(true);
+                    } else {
+                        useSharedStreamServer();
                     }
                     updateStatus(ThingStatus.ONLINE);
                     isOnline = true;
+                    reconnectAttempts = 0;
                     logger.info("IP Camera at {} is now online.", ipAddress);
-                    cameraConnectionJob.cancel(false);
                     cameraConnectionJob = null;
-                }
+                }, cameraScheduler);
             } else {
                 updateStatus(ThingStatus.OFFLINE, ThingStatusDetail.CONFIGURATION_ERROR,
                         "Camera failed to report a valid Snaphot URL, try over-riding the Snapshot URL auto detection by entering a known URL.");
@@ -1536,25 +2187,25 @@ public class IpCameraHandler extends BaseThingHandler {
         }
     };
 
+    // A connect failure has already been dealt with by cameraConnectionFailed(), anything else means the camera
+    // accepted the connection yet closed it without a reply, so try again later.
+    private void cameraConnectionClosed(Throwable error) {
+        if (error instanceof CompletionException) {
+            error = error.getCause();
+        }
+        if (!(error instanceof ConnectException)) {
+            logger.debug("Camera at {} closed the connection before sending a snapshot, will try again.", ipAddress);
+            scheduleReconnect();
+        }
+    }
+
     boolean streamIsStopped(String url) {
-        byte indexInLists = 0;
-        lock.lock();
-        try {
-            indexInLists = (byte) listOfRequests.lastIndexOf(url);
-            if (indexInLists < 0) {
-                return true; // Stream not found, probably first run.
-            }
-            // Stream was found in list now to check status
-            // Status can be -1=closed, 0=closing (do not re-use channel), 1=open , 2=open
-            // and ok to reuse
-            else if (listOfChStatus.get(indexInLists) < 1) {
-                // may need to check if more than one is in the lists.
-                return true; // Stream was open, but not now.
-            }
-        } finally {
-            lock.unlock();
+        ChannelTracking tracker = channelTrackingMap.get(url);
+        if (tracker == null) {
+            return true; // Stream not found, probably first run.
         }
-        return false; // Stream is still open
+        // Stream was open, but not now. A stream that is CLOSING is also stopped, its channel just has not closed yet.
+        return !tracker.isOpen();
     }
 
     Runnable pollingCamera = new Runnable() {
@@ -1577,25 +2228,27 @@ public class IpCameraHandler extends BaseThingHandler {
                 case "HIKVISION":
                     if (streamIsStopped("/ISAPI/Event/notification/alertStream")) {
                         logger.warn("The alarm stream was not running for camera {}, re-starting it now", ipAddress);
-                        sendHttpGET("/ISAPI/Event/notification/alertStream");
+                        sendHttpGET("/ISAPI/Event/notification/alertStream", RequestType.ALARM_POLL);
                     }
                     break;
                 case "AMCREST":
-                    sendHttpGET("/cgi-bin/eventManager.cgi?action=getEventIndexes&code=VideoMotion");
-                    sendHttpGET("/cgi-bin/eventManager.cgi?action=getEventIndexes&code=AudioMutation");
+                    sendHttpGET("/cgi-bin/eventManager.cgi?action=getEventIndexes&code=VideoMotion",
+                            RequestType.ALARM_POLL);
+                    sendHttpGET("/cgi-bin/eventManager.cgi?action=getEventIndexes&code=AudioMutation",
+                            RequestType.ALARM_POLL);
                     break;
                 case "DAHUA":
                     // Check for alarms, channel for NVRs appears not to work at filtering.
                     if (streamIsStopped("/cgi-bin/eventManager.cgi?action=attach&codes=[All]")) {
                         logger.warn("The alarm stream was not running for camera {}, re-starting it now", ipAddress);
-                        sendHttpGET("/cgi-bin/eventManager.cgi?action=attach&codes=[All]");
+                        sendHttpGET("/cgi-bin/eventManager.cgi?action=attach&codes=[All]", RequestType.ALARM_POLL);
                     }
                     break;
                 case "DOORBIRD":
                     // Check for alarms, channel for NVRs appears not to work at filtering.
                     if (streamIsStopped("/bha-api/monitor.cgi?ring=doorbell,motionsensor")) {
                         logger.warn("The alarm stream was not running for camera {}, re-starting it now", ipAddress);
-                        sendHttpGET("/bha-api/monitor.cgi?ring=doorbell,motionsensor");
+                        sendHttpGET("/bha-api/monitor.cgi?ring=doorbell,motionsensor", RequestType.ALARM_POLL);
                     }
                     break;
             }
@@ -1613,12 +2266,50 @@ public class IpCameraHandler extends BaseThingHandler {
             // Delay movements so when a rule changes all 3, a single movement is made.
             if (movePTZ) {
                 movePTZ = false;
-                scheduledMovePTZ.schedule(runnableMovePTZ, 50, TimeUnit.MILLISECONDS);
+                cameraScheduler.schedule(runnableMovePTZ, 50, TimeUnit.MILLISECONDS);
+            }
+            int evicted = connectionPool.evictIdleChannels();
+            int dropped = connectionPool.dropStaleRequests();
+            if (evicted > 0 || dropped > 0 || connectionPool.getWaitingRequests() > 0) {
+                logger.debug("Closed {} idle connections and dropped {} stale requests, the pool is now {}", evicted,
+                        dropped, connectionPool);
+            }
+            if (System.currentTimeMillis() - lastLatencyReport >= 60000) {
+                lastLatencyReport = System.currentTimeMillis();
+                for (Map.Entry<RequestType, LatencyHistogram> entry : requestLatency.entrySet()) {
+                    if (entry.getValue().getCount() > 0 || entry.getValue().getTimeouts() > 0) {
+                        logger.debug("Camera at {} replies to {} requests in {}", ipAddress, entry.getKey(),
+                                entry.getValue());
+                    }
+                }
+                logger.debug("Camera at {} has skipped {} Image channel updates as the picture had not changed.",
+                        ipAddress, imageChangeDetector.getSkippedUpdates());
+                for (Channel viewerChannel : mjpegChannelGroup) {
+                    MjpegViewer viewer = viewerChannel.attr(MjpegViewer.VIEWER).get();
+                    if (viewer != null && viewer.getFramesDropped() > 0) {
+                        logger.debug("MJPEG viewer of camera {} is falling behind, {}", ipAddress, viewer);
+                    }
+                }
+            }
+            boolean keepMjpegOpen = mjpegAlwaysOn && canStreamMjpeg();
+            if (keepMjpegOpen) {
+                synchronized (mjpegChannelGroup) {
+                    startMjpegSource();
+                }
+            }
+            // A stream made from snapshots has no connection to re-start, the snapshot requests time out on their own.
+            if ((isMjpegWatched() || keepMjpegOpen) && canStreamMjpeg() && !isSnapshotMjpeg()
+                    && System.currentTimeMillis() - lastMjpegFrameTime > MJPEG_STALL_MS) {
+                logger.warn("The MJPEG stream from camera {} has not sent a frame for {}ms, re-starting it now.",
+                        ipAddress, System.currentTimeMillis() - lastMjpegFrameTime);
+                lastMjpegFrameTime = System.currentTimeMillis();
+                closeStream(mjpegUri);
+                sendHttpGET(mjpegUri);
             }
-            if (listOfRequests.size() > 12) {
+            if (channelTrackingMap.size() > 12) {
                 logger.info(
                         "There are {} channels being tracked, cleaning out old channels now to try and reduce this to 12 or below.",
-                        listOfRequests.size());
+                        channelTrackingMap.size());
                 cleanChannels();
             }
             if (snapCount > 0) {
@@ -1649,11 +2340,28 @@ public class IpCameraHandler extends BaseThingHandler {
         ipAddress = config.get(CONFIG_IPADDRESS).toString();
         username = (config.get(CONFIG_USERNAME) == null) ? null : config.get(CONFIG_USERNAME).toString();
         password = (config.get(CONFIG_PASSWORD) == null) ? null : config.get(CONFIG_PASSWORD).toString();
+        connectionPool.setMaxConnections((config.get(CONFIG_MAX_HTTP_CONNECTIONS) == null)
+                ? CameraConnectionPool.DEFAULT_MAX_CONNECTIONS
+                : Integer.parseInt(config.get(CONFIG_MAX_HTTP_CONNECTIONS).toString()));
+        connectionPool.setStaleAfter(Integer.parseInt(config.get(CONFIG_POLL_CAMERA_MS).toString()));
+        releaseSnapshots();
         preroll = Integer.parseInt(config.get(CONFIG_GIF_PREROLL).toString());
         postroll = Integer.parseInt(config.get(CONFIG_GIF_POSTROLL).toString());
         fifoSnapshotBuffer = new CircularFifoBuffer(preroll + postroll);
         updateImageEvents = config.get(CONFIG_IMAGE_UPDATE_EVENTS).toString();
         updateImage = (boolean) config.get(CONFIG_UPDATE_IMAGE);
+        mjpegLingerMs = (config.get(CONFIG_MJPEG_LINGER_SECONDS) == null) ? 10000
+                : Integer.parseInt(config.get(CONFIG_MJPEG_LINGER_SECONDS).toString()) * 1000;
+        ipWhitelist = IpWhitelist.parse((config.get(CONFIG_IP_WHITELIST) == null) ? "(127.0.0.1)"
+                : config.get(CONFIG_IP_WHITELIST).toString());
+        cameraRegistry.register(getThing().getUID().getId(), this);
+        mjpegAlwaysOn = (config.get(CONFIG_MJPEG_ALWAYS_ON) == null) ? false
+                : (boolean) config.get(CONFIG_MJPEG_ALWAYS_ON);
+        snapshotMjpegIntervalMs = (config.get(CONFIG_MJPEG_FROM_SNAPSHOT_MS) == null) ? 1000
+                : Integer.parseInt(config.get(CONFIG_MJPEG_FROM_SNAPSHOT_MS).toString());
+        imageChangeDetector.setThreshold((config.get(CONFIG_IMAGE_CHANGE_THRESHOLD) == null) ? 0
+                : Integer.parseInt(config.get(CONFIG_IMAGE_CHANGE_THRESHOLD).toString()));
+        imageChangeDetector.reset();
 
         snapshotUri = (config.get(CONFIG_SNAPSHOT_URL_OVERRIDE) == null) ? null
                 : getCorrectUrlFormat(config.get(CONFIG_SNAPSHOT_URL_OVERRIDE).toString());
@@ -1719,7 +2427,7 @@ public class IpCameraHandler extends BaseThingHandler {
                 }
                 break;
         }
-        cameraConnectionJob = cameraConnection.schedule(pollingCameraConnection, 1, TimeUnit.SECONDS);
+        cameraConnectionJob = cameraScheduler.schedule(pollingCameraConnection, 1, TimeUnit.SECONDS);
     }
 
     private void restart() {
@@ -1727,7 +2435,16 @@ public class IpCameraHandler extends BaseThingHandler {
 
         basicAuth = null; // clear out stored password hash
         useDigestAuth = false;
+        digestChallenge = null;
+        reconnectAttempts = 0;
         startStreamServer(false);
+        synchronized (mjpegChannelGroup) {
+            if (mjpegLingerJob != null) {
+                mjpegLingerJob.cancel(false);
+                mjpegLingerJob = null;
+            }
+        }
+        stopSnapshotMjpeg();
 
         if (pollCameraJob != null) {
             pollCameraJob.cancel(true);
@@ -1749,21 +2466,16 @@ public class IpCameraHandler extends BaseThingHandler {
             ffmpegGIF = null;
         }
 
-        lock.lock();
-        try {
-            listOfRequests.clear();
-            listOfChannels.clear();
-            listOfChStatus.clear();
-            listOfReplies.clear();
-        } finally {
-            lock.unlock();
-        }
+        channelTrackingMap.clear();
+        inFlightGets.clear();
     }
 
     @Override
     public void dispose() {
         logger.info("ipCamera Dispose() called.");
         onvifCamera = null; // needed in case user edits password.
+        cameraRegistry.unregister(getThing().getUID().getId(), this);
         restart();
+        releaseSnapshots();
     }
 }
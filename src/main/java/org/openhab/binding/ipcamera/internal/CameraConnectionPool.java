@@ -0,0 +1,366 @@
+/**
+ * Copyright (c) 2010-2019 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.openhab.binding.ipcamera.internal;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.util.AttributeKey;
+
+/**
+ * The {@link CameraConnectionPool} keeps the keep-alive HTTP connections to a single camera, so that any idle
+ * connection can be handed out for the next request no matter what URL it last served. The number of connections is
+ * capped, requests that arrive when the cap is reached wait for a connection to be released. Waiting requests are
+ * sent in {@link RequestType} priority order, the queue is bounded and polls that have waited longer than a poll are
+ * dropped. Connections that turn into a stream (MJPEG or alarm streams) are detached from the pool as they never
+ * become idle again.
+ *
+ * @author Matthew Skinner - Initial contribution
+ */
+
+public class CameraConnectionPool {
+    private static final AttributeKey<Long> IDLE_SINCE = AttributeKey.valueOf("ipcamera.idleSince");
+    // Holds the remote port while the channel counts towards the maximum, a closed channel no longer knows its port.
+    private static final AttributeKey<Integer> POOLED_PORT = AttributeKey.valueOf("ipcamera.pooledPort");
+    public static final int DEFAULT_MAX_CONNECTIONS = 4;
+    // Cameras normally drop a keep-alive connection after 15 to 20 seconds, so close it before they do.
+    public static final long IDLE_TIMEOUT_MS = 10000;
+    public static final int MAX_WAITING_REQUESTS = 32;
+
+    // Idle channels are stored per port, as a camera may serve HTTP on more than one port.
+    private final Map<Integer, ConcurrentLinkedDeque<Channel>> idleChannels = new ConcurrentHashMap<>();
+    // One queue per RequestType, an EnumMap iterates in priority order.
+    private final Map<RequestType, ConcurrentLinkedQueue<WaitingRequest>> waitingRequests = new EnumMap<>(
+            RequestType.class);
+    private final AtomicInteger waitingCount = new AtomicInteger();
+    private final AtomicLong totalWaitMs = new AtomicLong();
+    private final AtomicLong sentFromQueue = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile long longestWaitMs = 0;
+    private volatile long staleAfterMs = 2000;
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private volatile int maxConnections;
+
+    private final ChannelFutureListener closeListener = new ChannelFutureListener() {
+        @Override
+        public void operationComplete(ChannelFuture future) {
+            Channel channel = future.channel();
+            removeIdle(channel);
+            if (channel.attr(POOLED_PORT).getAndSet(null) != null) {
+                openConnections.decrementAndGet();
+                runWaitingRequest();
+            }
+        }
+    };
+
+    private static class WaitingRequest {
+        final RequestType type;
+        final Runnable request;
+        final CompletableFuture<?> replyFuture;
+        final long queuedAt = System.currentTimeMillis();
+
+        WaitingRequest(RequestType type, Runnable request, CompletableFuture<?> replyFuture) {
+            this.type = type;
+            this.request = request;
+            this.replyFuture = replyFuture;
+        }
+    }
+
+    public CameraConnectionPool(int maxConnections) {
+        this.maxConnections = Math.max(1, maxConnections);
+        for (RequestType type : RequestType.values()) {
+            waitingRequests.put(type, new ConcurrentLinkedQueue<WaitingRequest>());
+        }
+    }
+
+    // Requests that can be dropped are dropped once they have waited this long, normally the poll time.
+    public void setStaleAfter(long staleAfterMs) {
+        this.staleAfterMs = staleAfterMs;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = Math.max(1, maxConnections);
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    // Returns an idle channel to the port that the caller now owns, or null if a new connection is needed.
+    public Channel acquire(int port) {
+        ConcurrentLinkedDeque<Channel> idle = idleChannels.get(port);
+        if (idle != null) {
+            Channel channel;
+            // Most recently used first, as it is the least likely to have been closed by the camera.
+            while ((channel = idle.pollFirst()) != null) {
+                if (channel.isActive()) {
+                    hits.incrementAndGet();
+                    return channel;
+                }
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    // Reserves room for a new connection, returns false if the camera already has the maximum open.
+    public boolean reserve() {
+        int current;
+        do {
+            current = openConnections.get();
+            if (current >= maxConnections) {
+                // Free up room by closing the longest idle channel, acquire() found none for this port.
+                closeOldestIdle();
+                return false;
+            }
+        } while (!openConnections.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    // Must be called if the connection that was reserved could not be made.
+    public void cancelReservation() {
+        openConnections.decrementAndGet();
+        runWaitingRequest();
+    }
+
+    // Starts tracking a newly connected channel that was made with a reservation.
+    public void add(Channel channel) {
+        SocketAddress address = channel.remoteAddress();
+        int port = (address instanceof InetSocketAddress) ? ((InetSocketAddress) address).getPort() : -1;
+        channel.attr(POOLED_PORT).set(port);
+        channel.closeFuture().addListener(closeListener);
+    }
+
+    // The channel has become a stream and will not be released, so it no longer counts towards the maximum.
+    public void detach(Channel channel) {
+        removeIdle(channel);
+        if (channel.attr(POOLED_PORT).getAndSet(null) != null) {
+            openConnections.decrementAndGet();
+            runWaitingRequest();
+        }
+    }
+
+    // Returns a channel that has finished with its reply, it is handed straight to a waiting request if there is one.
+    public void release(Channel channel) {
+        Integer port = channel.attr(POOLED_PORT).get();
+        if (port == null || !channel.isActive()) {
+            return;
+        }
+        channel.attr(IDLE_SINCE).set(System.currentTimeMillis());
+        ConcurrentLinkedDeque<Channel> idle = idleChannels.get(port);
+        if (idle == null) {
+            ConcurrentLinkedDeque<Channel> newIdle = new ConcurrentLinkedDeque<Channel>();
+            idle = idleChannels.putIfAbsent(port, newIdle);
+            if (idle == null) {
+                idle = newIdle;
+            }
+        }
+        idle.offerFirst(channel);
+        runWaitingRequest();
+    }
+
+    // The request is run again once a channel is released or closed. When the queue is full the oldest request of a
+    // lower priority makes room, if there is none the new request fails straight away.
+    public void waitForConnection(RequestType type, Runnable request, CompletableFuture<?> replyFuture) {
+        if (waitingCount.incrementAndGet() > MAX_WAITING_REQUESTS && !dropLowerPriority(type)) {
+            waitingCount.decrementAndGet();
+            dropped.incrementAndGet();
+            replyFuture.completeExceptionally(
+                    new RejectedExecutionException("Too many requests are waiting to be sent to the camera"));
+            return;
+        }
+        waitingRequests.get(type).offer(new WaitingRequest(type, request, replyFuture));
+        // A channel may have been released while the request was being queued.
+        if (openConnections.get() < maxConnections || hasIdleChannel()) {
+            runWaitingRequest();
+        }
+    }
+
+    public int getWaitingRequests() {
+        return waitingCount.get();
+    }
+
+    public long getAverageWaitMs() {
+        long sent = sentFromQueue.get();
+        return (sent == 0) ? 0 : totalWaitMs.get() / sent;
+    }
+
+    public long getLongestWaitMs() {
+        return longestWaitMs;
+    }
+
+    public long getDroppedRequests() {
+        return dropped.get();
+    }
+
+    // Fails any poll that has waited too long, so it does not hold up newer requests.
+    public int dropStaleRequests() {
+        long oldestAllowed = System.currentTimeMillis() - staleAfterMs;
+        int count = 0;
+        for (ConcurrentLinkedQueue<WaitingRequest> queue : waitingRequests.values()) {
+            for (WaitingRequest waiting : queue) {
+                if (waiting.type.isDroppedWhenStale() && waiting.queuedAt < oldestAllowed && queue.remove(waiting)) {
+                    drop(waiting, "waited too long for a free connection to the camera");
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    // Closes any channel that has sat idle for longer than IDLE_TIMEOUT_MS, returns how many were closed.
+    public int evictIdleChannels() {
+        long oldestAllowed = System.currentTimeMillis() - IDLE_TIMEOUT_MS;
+        int evicted = 0;
+        for (ConcurrentLinkedDeque<Channel> idle : idleChannels.values()) {
+            Iterator<Channel> iterator = idle.descendingIterator();
+            while (iterator.hasNext()) {
+                Channel channel = iterator.next();
+                Long idleSince = channel.attr(IDLE_SINCE).get();
+                if (!channel.isActive() || idleSince == null || idleSince < oldestAllowed) {
+                    if (idle.removeFirstOccurrence(channel)) {
+                        channel.close();
+                        evicted++;
+                    }
+                }
+            }
+        }
+        return evicted;
+    }
+
+    // Closes every idle channel and fails any waiting requests, busy channels are closed by the caller.
+    public void clear() {
+        for (ConcurrentLinkedQueue<WaitingRequest> queue : waitingRequests.values()) {
+            WaitingRequest waiting;
+            while ((waiting = queue.poll()) != null) {
+                drop(waiting, "was cancelled as the connections to the camera were closed");
+            }
+        }
+        for (ConcurrentLinkedDeque<Channel> idle : idleChannels.values()) {
+            Channel channel;
+            while ((channel = idle.pollFirst()) != null) {
+                channel.close();
+            }
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public int getOpenConnections() {
+        return openConnections.get();
+    }
+
+    @Override
+    public String toString() {
+        return "open:" + openConnections.get() + "/" + maxConnections + " hits:" + hits.get() + " misses:"
+                + misses.get() + " waiting:" + waitingCount.get() + " averageWaitMs:" + getAverageWaitMs()
+                + " longestWaitMs:" + longestWaitMs + " dropped:" + dropped.get();
+    }
+
+    private void runWaitingRequest() {
+        long now = System.currentTimeMillis();
+        for (ConcurrentLinkedQueue<WaitingRequest> queue : waitingRequests.values()) {
+            WaitingRequest waiting;
+            while ((waiting = queue.poll()) != null) {
+                long waitedMs = now - waiting.queuedAt;
+                if (waiting.type.isDroppedWhenStale() && waitedMs > staleAfterMs) {
+                    drop(waiting, "waited too long for a free connection to the camera");
+                    continue;
+                }
+                waitingCount.decrementAndGet();
+                sentFromQueue.incrementAndGet();
+                totalWaitMs.addAndGet(waitedMs);
+                if (waitedMs > longestWaitMs) {
+                    longestWaitMs = waitedMs;
+                }
+                waiting.request.run();
+                return;
+            }
+        }
+    }
+
+    // Makes room in a full queue by dropping the oldest request that has a lower priority than type.
+    private boolean dropLowerPriority(RequestType type) {
+        RequestType[] types = RequestType.values();
+        for (int i = types.length - 1; i > type.ordinal(); i--) {
+            WaitingRequest waiting = waitingRequests.get(types[i]).poll();
+            if (waiting != null) {
+                drop(waiting, "was pushed out of the queue by a higher priority request");
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void drop(WaitingRequest waiting, String reason) {
+        waitingCount.decrementAndGet();
+        dropped.incrementAndGet();
+        waiting.replyFuture.completeExceptionally(new TimeoutException("A " + waiting.type + " request " + reason));
+    }
+
+    private boolean hasIdleChannel() {
+        for (ConcurrentLinkedDeque<Channel> idle : idleChannels.values()) {
+            if (!idle.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void closeOldestIdle() {
+        Channel oldest = null;
+        long oldestTime = Long.MAX_VALUE;
+        for (ConcurrentLinkedDeque<Channel> idle : idleChannels.values()) {
+            Channel channel = idle.peekLast();
+            if (channel != null) {
+                Long idleSince = channel.attr(IDLE_SINCE).get();
+                if (idleSince != null && idleSince < oldestTime) {
+                    oldestTime = idleSince;
+                    oldest = channel;
+                }
+            }
+        }
+        if (oldest != null && removeIdle(oldest)) {
+            oldest.close();
+        }
+    }
+
+    private boolean removeIdle(Channel channel) {
+        Integer port = channel.attr(POOLED_PORT).get();
+        ConcurrentLinkedDeque<Channel> idle = (port == null) ? null : idleChannels.get(port);
+        return idle != null && idle.removeFirstOccurrence(channel);
+    }
+}
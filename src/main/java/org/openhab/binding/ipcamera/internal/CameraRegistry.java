@@ -0,0 +1,134 @@
+/**
+ * Copyright (c) 2010-2019 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.openhab.binding.ipcamera.internal;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.openhab.binding.ipcamera.handler.IpCameraHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.QueryStringDecoder;
+
+/**
+ * The {@link CameraRegistry} is owned by the {@link IpCameraHandlerFactory} and lets one camera find the others by
+ * their thing ID, so a request to any camera's stream server can use the pictures of all of them. It also keeps the
+ * {@link MjpegMosaic}s that are running, so viewers asking for the same mosaic share one.
+ *
+ * @author Matthew Skinner - Initial contribution
+ */
+
+public class CameraRegistry {
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final Map<String, IpCameraHandler> cameras = new ConcurrentHashMap<>();
+    private final Map<String, MjpegMosaic> mosaics = new HashMap<>();
+    private final ScheduledExecutorService scheduler;
+    private final Executor tileExecutor;
+
+    public CameraRegistry(ScheduledExecutorService scheduler, Executor tileExecutor) {
+        this.scheduler = scheduler;
+        this.tileExecutor = tileExecutor;
+    }
+
+    public void register(String thingId, IpCameraHandler handler) {
+        cameras.put(thingId, handler);
+    }
+
+    // Only removes the handler given, a new one for the same thing may have registered already.
+    public void unregister(String thingId, IpCameraHandler handler) {
+        cameras.remove(thingId, handler);
+    }
+
+    public IpCameraHandler getCamera(String thingId) {
+        return cameras.get(thingId);
+    }
+
+    public boolean isIpAllowedByAny(InetAddress address) {
+        for (IpCameraHandler camera : cameras.values()) {
+            if (camera.isIpAllowed(address)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // /mosaic.mjpeg?cameras=<thingId>,<thingId>&width=1280&fps=2 shows the cameras in a grid, left to right. Each
+    // camera's own whitelist decides if it can be in the mosaic, null is returned when none of them can.
+    public MjpegMosaic joinMosaic(String uri, Channel channel) {
+        QueryStringDecoder query = new QueryStringDecoder(uri);
+        InetAddress requestIP = ((InetSocketAddress) channel.remoteAddress()).getAddress();
+        List<String> thingIds = new ArrayList<>();
+        List<String> cameraLists = query.parameters().get("cameras");
+        if (cameraLists != null) {
+            for (String list : cameraLists) {
+                for (String thingId : list.split(",")) {
+                    thingId = thingId.trim();
+                    IpCameraHandler camera = getCamera(thingId);
+                    if (camera == null || !camera.isIpAllowed(requestIP)) {
+                        logger.debug("Camera {} is left out of the mosaic for {}", thingId, requestIP);
+                    } else if (thingIds.size() < MjpegMosaic.MAX_CAMERAS) {
+                        thingIds.add(thingId);
+                    }
+                }
+            }
+        }
+        if (thingIds.isEmpty()) {
+            logger.warn("A camera mosaic was asked for without any cameras, use ?cameras=<thingId>,<thingId>");
+            return null;
+        }
+        int width = getIntParameter(query, "width");
+        int fps = getIntParameter(query, "fps");
+        return joinMosaic(thingIds, (width > 0) ? width : MjpegMosaic.DEFAULT_WIDTH,
+                (fps > 0) ? fps : MjpegMosaic.DEFAULT_FPS, new MjpegViewer(channel, 0, 0));
+    }
+
+    // 0 when the parameter is missing or not a positive number.
+    private int getIntParameter(QueryStringDecoder query, String name) {
+        List<String> values = query.parameters().get(name);
+        if (values == null || values.isEmpty()) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Integer.parseInt(values.get(0)));
+        } catch (NumberFormatException e) {
+            logger.debug("Ignoring {}={} as it is not a number.", name, values.get(0));
+            return 0;
+        }
+    }
+
+    public synchronized MjpegMosaic joinMosaic(List<String> thingIds, int width, int fps, MjpegViewer viewer) {
+        String key = String.join(",", thingIds) + "@" + width + "x" + fps;
+        MjpegMosaic mosaic = mosaics.computeIfAbsent(key,
+                newKey -> new MjpegMosaic(newKey, thingIds, width, fps, this, tileExecutor));
+        mosaic.addViewer(viewer);
+        mosaic.start(scheduler);
+        return mosaic;
+    }
+
+    public synchronized void leaveMosaic(MjpegMosaic mosaic, Channel channel) {
+        if (mosaic.removeViewer(channel)) {
+            mosaics.remove(mosaic.getKey());
+            mosaic.stop();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright (c) 2010-2019 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.openhab.binding.ipcamera.internal;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.ScheduledFuture;
+
+/**
+ * The {@link ChannelTracking} holds the netty channel that is serving a single URL of a camera, what state that
+ * channel is in and the last reply the camera sent back for the URL. One of these is stored per URL and also attached
+ * to the channel itself, so handlers can find it from the channel without searching.
+ *
+ * @author Matthew Skinner - Initial contribution
+ */
+
+public class ChannelTracking {
+    public static final AttributeKey<ChannelTracking> TRACKER = AttributeKey.valueOf("ipcamera.channelTracking");
+    // Completed with the reply to the request that is currently in flight on a channel.
+    public static final AttributeKey<CompletableFuture<String>> REPLY_FUTURE = AttributeKey
+            .valueOf("ipcamera.replyFuture");
+    // When the request that is currently in flight was written, and what sort of request it is.
+    public static final AttributeKey<Long> REQUEST_SENT = AttributeKey.valueOf("ipcamera.requestSent");
+    public static final AttributeKey<RequestType> REQUEST_TYPE = AttributeKey.valueOf("ipcamera.requestType");
+    // Closes the channel if the reply to the request that is currently in flight takes too long.
+    public static final AttributeKey<ScheduledFuture<?>> REQUEST_DEADLINE = AttributeKey
+            .valueOf("ipcamera.requestDeadline");
+
+    public enum Status {
+        CLOSED, // Channel has closed, or has not been opened yet.
+        CLOSING, // Channel is still open, but must not be re-used.
+        OPEN, // Channel is open and busy with a request.
+        REUSABLE // Channel is open with keep-alive, it goes back to the pool once the reply has finished.
+    }
+
+    private final String requestUrl;
+    private final AtomicReference<Status> status = new AtomicReference<Status>(Status.CLOSED);
+    private volatile Channel channel = null;
+    private volatile String storedReply = null;
+
+    public ChannelTracking(String requestUrl) {
+        this.requestUrl = requestUrl;
+    }
+
+    public String getRequestUrl() {
+        return requestUrl;
+    }
+
+    public Channel getChannel() {
+        return channel;
+    }
+
+    // Attaches a freshly opened channel, the channel is marked as busy.
+    public void setChannel(Channel channel) {
+        this.channel = channel;
+        status.set(Status.OPEN);
+        channel.attr(TRACKER).set(this);
+    }
+
+    // A newer channel may have replaced this one for the same URL, so callbacks from the old channel must be ignored.
+    public boolean isTracking(Channel channel) {
+        return this.channel == channel;
+    }
+
+    public Status getStatus() {
+        return status.get();
+    }
+
+    public void setStatus(Status newStatus) {
+        status.set(newStatus);
+    }
+
+    public boolean compareAndSetStatus(Status expected, Status newStatus) {
+        return status.compareAndSet(expected, newStatus);
+    }
+
+    // Lets go of a keep-alive channel that has finished its reply, so the pool can hand it out for any URL.
+    public boolean releaseChannel(Channel channel) {
+        if (this.channel != channel || !status.compareAndSet(Status.REUSABLE, Status.CLOSED)) {
+            return false;
+        }
+        this.channel = null;
+        channel.attr(TRACKER).compareAndSet(this, null);
+        return true;
+    }
+
+    // Runs onExpiry on the channel's own event loop unless cancelDeadline is called first.
+    public static void startDeadline(Channel channel, Runnable onExpiry, long deadlineMs) {
+        ScheduledFuture<?> previous = channel.attr(REQUEST_DEADLINE)
+                .getAndSet(channel.eventLoop().schedule(onExpiry, deadlineMs, TimeUnit.MILLISECONDS));
+        if (previous != null) {
+            previous.cancel(false);
+        }
+    }
+
+    public static void cancelDeadline(Channel channel) {
+        ScheduledFuture<?> deadline = channel.attr(REQUEST_DEADLINE).getAndSet(null);
+        if (deadline != null) {
+            deadline.cancel(false);
+        }
+    }
+
+    public boolean isOpen() {
+        Status current = status.get();
+        return current == Status.OPEN || current == Status.REUSABLE;
+    }
+
+    public String getReply() {
+        return storedReply;
+    }
+
+    public void setReply(String reply) {
+        storedReply = reply;
+    }
+}
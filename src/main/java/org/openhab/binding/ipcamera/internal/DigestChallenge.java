@@ -0,0 +1,216 @@
+/**
+ * Copyright (c) 2010-2019 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.openhab.binding.ipcamera.internal;
+
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The {@link DigestChallenge} holds the last Digest challenge a camera sent, so every channel to that camera can
+ * send a Digest Authorization with its requests without waiting for a 401 first. The nonce count is shared so each
+ * use of the nonce gets the next nc value no matter which channel the request goes out on.
+ *
+ * The hashing is done in buffers that each thread reuses, so the only object made per request is the final String.
+ *
+ * @author Matthew Skinner - Initial contribution
+ */
+
+public class DigestChallenge {
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final ThreadLocal<MessageDigest> MD5 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is needed for DIGEST auth and is missing from this JVM", e);
+        }
+    });
+    private static final ThreadLocal<HashBuffers> BUFFERS = ThreadLocal.withInitial(HashBuffers::new);
+
+    private final String realm, nonce, opaque, qop;
+    private final byte[] nonceBytes, qopBytes;
+    private final AtomicInteger nonceCount = new AtomicInteger();
+    // HA1 only changes with the realm, so it is worked out once and handed on to the next challenge of the realm.
+    private volatile Ha1 ha1 = null;
+
+    public DigestChallenge(String realm, String nonce, String opaque, String qop, DigestChallenge previous) {
+        this.realm = realm;
+        this.nonce = (nonce == null) ? "" : nonce;
+        this.opaque = opaque;
+        // Cameras can offer "auth,auth-int", only auth is supported.
+        this.qop = (qop == null || qop.isEmpty()) ? null : "auth";
+        nonceBytes = this.nonce.getBytes(StandardCharsets.UTF_8);
+        qopBytes = (this.qop == null) ? null : this.qop.getBytes(StandardCharsets.UTF_8);
+        if (previous != null && realm.equals(previous.realm)) {
+            ha1 = previous.ha1;
+        }
+    }
+
+    public String getRealm() {
+        return realm;
+    }
+
+    public String getNonce() {
+        return nonce;
+    }
+
+    // Returns what goes after "Digest " in the Authorization header, safe to call from many channels at once.
+    public String createDigest(String username, String password, String httpMethod, String requestURI) {
+        HashBuffers buffers = BUFFERS.get();
+        MessageDigest md5 = MD5.get();
+        byte[] ha1Hex = getHa1(username, password, buffers, md5);
+
+        buffers.reset();
+        buffers.append(httpMethod).append(':').append(requestURI);
+        buffers.hashInto(md5, buffers.ha2Hex);
+
+        int nc = 0, cnonce = 0;
+        buffers.reset();
+        buffers.append(ha1Hex).append(':').append(nonceBytes).append(':');
+        if (qopBytes != null) {
+            nc = nonceCount.incrementAndGet();
+            cnonce = ThreadLocalRandom.current().nextInt();
+            buffers.appendHex(nc).append(':').appendHex(cnonce).append(':').append(qopBytes).append(':');
+        }
+        buffers.append(buffers.ha2Hex);
+        buffers.hashInto(md5, buffers.responseHex);
+
+        StringBuilder header = buffers.header;
+        header.setLength(0);
+        header.append("username=\"").append(username).append("\", realm=\"").append(realm).append("\", nonce=\"")
+                .append(nonce).append("\", uri=\"").append(requestURI).append('"');
+        if (qop != null) {
+            header.append(", cnonce=\"");
+            appendHex(header, cnonce);
+            header.append("\", nc=");
+            appendHex(header, nc);
+            header.append(", qop=\"").append(qop).append('"');
+        }
+        header.append(", response=\"");
+        for (byte b : buffers.responseHex) {
+            header.append((char) b);
+        }
+        header.append('"');
+        if (opaque != null) {
+            header.append(", opaque=\"").append(opaque).append('"');
+        }
+        return header.toString();
+    }
+
+    private byte[] getHa1(String username, String password, HashBuffers buffers, MessageDigest md5) {
+        Ha1 cached = ha1;
+        if (cached != null && cached.username.equals(username) && cached.password.equals(password)) {
+            return cached.hex;
+        }
+        byte[] hex = new byte[32];
+        buffers.reset();
+        buffers.append(username).append(':').append(realm).append(':').append(password);
+        buffers.hashInto(md5, hex);
+        ha1 = new Ha1(username, password, hex);
+        return hex;
+    }
+
+    // 8 digit lower case hex, as used for both nc and cnonce.
+    private static void appendHex(StringBuilder builder, int value) {
+        for (int shift = 28; shift >= 0; shift -= 4) {
+            builder.append(HEX_DIGITS[(value >>> shift) & 0xF]);
+        }
+    }
+
+    private static class Ha1 {
+        final String username, password;
+        final byte[] hex;
+
+        Ha1(String username, String password, byte[] hex) {
+            this.username = username;
+            this.password = password;
+            this.hex = hex;
+        }
+    }
+
+    private static class HashBuffers {
+        byte[] input = new byte[256];
+        int length = 0;
+        final byte[] md5Result = new byte[16];
+        final byte[] ha2Hex = new byte[32];
+        final byte[] responseHex = new byte[32];
+        final StringBuilder header = new StringBuilder(320);
+
+        void reset() {
+            length = 0;
+        }
+
+        private void ensureRoom(int needed) {
+            if (length + needed > input.length) {
+                byte[] bigger = new byte[Math.max(input.length * 2, length + needed)];
+                System.arraycopy(input, 0, bigger, 0, length);
+                input = bigger;
+            }
+        }
+
+        HashBuffers append(char c) {
+            ensureRoom(1);
+            input[length++] = (byte) c;
+            return this;
+        }
+
+        HashBuffers append(byte[] bytes) {
+            ensureRoom(bytes.length);
+            System.arraycopy(bytes, 0, input, length, bytes.length);
+            length += bytes.length;
+            return this;
+        }
+
+        HashBuffers append(String text) {
+            int size = text.length();
+            ensureRoom(size);
+            for (int i = 0; i < size; i++) {
+                char c = text.charAt(i);
+                if (c >= 0x80) {
+                    // Rare, so only now pay for the UTF-8 encoder.
+                    length -= i;
+                    return append(text.getBytes(StandardCharsets.UTF_8));
+                }
+                input[length++] = (byte) c;
+            }
+            return this;
+        }
+
+        HashBuffers appendHex(int value) {
+            ensureRoom(8);
+            for (int shift = 28; shift >= 0; shift -= 4) {
+                input[length++] = (byte) HEX_DIGITS[(value >>> shift) & 0xF];
+            }
+            return this;
+        }
+
+        // MD5 of the input so far, written as 32 lower case hex characters into hexOut.
+        void hashInto(MessageDigest md5, byte[] hexOut) {
+            md5.reset();
+            md5.update(input, 0, length);
+            try {
+                md5.digest(md5Result, 0, md5Result.length);
+            } catch (DigestException e) {
+                throw new IllegalStateException("MD5 result did not fit in 16 bytes", e);
+            }
+            for (int i = 0; i < md5Result.length; i++) {
+                hexOut[i * 2] = (byte) HEX_DIGITS[(md5Result[i] >>> 4) & 0xF];
+                hexOut[i * 2 + 1] = (byte) HEX_DIGITS[md5Result[i] & 0xF];
+            }
+        }
+    }
+}
@@ -114,18 +114,13 @@ public class HikvisionHandler extends ChannelDuplexHandler {
 
 			// determine if the motion detection is turned on or off.
 			else if (content.contains("<MotionDetection version=\"2.0\" xmlns=\"")) {
-				ipCameraHandler.lock.lock();
-				try {
-					byte indexInLists = (byte) ipCameraHandler.listOfRequests
-							.indexOf("/ISAPI/System/Video/inputs/channels/" + nvrChannel + "01/motionDetection");
-					if (indexInLists >= 0) {
-						ipCameraHandler.logger.debug(
-								"!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! Storing new Motion reply {}",
-								content);
-						ipCameraHandler.listOfReplies.set(indexInLists, content);
-					}
-				} finally {
-					ipCameraHandler.lock.unlock();
+				ChannelTracking tracker = ipCameraHandler.channelTrackingMap
+						.get("/ISAPI/System/Video/inputs/channels/" + nvrChannel + "01/motionDetection");
+				if (tracker != null) {
+					ipCameraHandler.logger.debug(
+							"!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! Storing new Motion reply {}",
+							content);
+					tracker.setReply(content);
 				}
 
 				if (content.contains("<enabled>true</enabled>")) {
@@ -134,18 +129,13 @@ public class HikvisionHandler extends ChannelDuplexHandler {
 					ipCameraHandler.setChannelState(CHANNEL_ENABLE_MOTION_ALARM, OnOffType.valueOf("OFF"));
 				}
 			} else if (content.contains("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\r\n" + "<LineDetection>")) {
-				ipCameraHandler.lock.lock();
-				try {
-					byte indexInLists = (byte) ipCameraHandler.listOfRequests
-							.indexOf("/ISAPI/Smart/LineDetection/" + nvrChannel + "01");
-					if (indexInLists >= 0) {
-						ipCameraHandler.logger.debug(
-								"!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! Storing new Line Crossing reply {}",
-								content);
-						ipCameraHandler.listOfReplies.set(indexInLists, content);
-					}
-				} finally {
-					ipCameraHandler.lock.unlock();
+				ChannelTracking tracker = ipCameraHandler.channelTrackingMap
+						.get("/ISAPI/Smart/LineDetection/" + nvrChannel + "01");
+				if (tracker != null) {
+					ipCameraHandler.logger.debug(
+							"!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! Storing new Line Crossing reply {}",
+							content);
+					tracker.setReply(content);
 				}
 				if (content.contains("<enabled>true</enabled>")) {
 					ipCameraHandler.setChannelState(CHANNEL_ENABLE_LINE_CROSSING_ALARM, OnOffType.valueOf("ON"));
@@ -153,15 +143,10 @@ public class HikvisionHandler extends ChannelDuplexHandler {
 					ipCameraHandler.setChannelState(CHANNEL_ENABLE_LINE_CROSSING_ALARM, OnOffType.valueOf("OFF"));
 				}
 			} else if (content.contains("<AudioDetection version=\"2.0\" xmlns=\"")) {
-				ipCameraHandler.lock.lock();
-				try {
-					byte indexInLists = (byte) ipCameraHandler.listOfRequests
-							.indexOf("/ISAPI/Smart/AudioDetection/channels/" + nvrChannel + "01");
-					if (indexInLists >= 0) {
-						ipCameraHandler.listOfReplies.set(indexInLists, content);
-					}
-				} finally {
-					ipCameraHandler.lock.unlock();
+				ChannelTracking tracker = ipCameraHandler.channelTrackingMap
+						.get("/ISAPI/Smart/AudioDetection/channels/" + nvrChannel + "01");
+				if (tracker != null) {
+					tracker.setReply(content);
 				}
 				if (content.contains("<enabled>true</enabled>")) {
 					ipCameraHandler.setChannelState(CHANNEL_ENABLE_AUDIO_ALARM, OnOffType.valueOf("ON"));
@@ -184,18 +169,13 @@ public class HikvisionHandler extends ChannelDuplexHandler {
 					ipCameraHandler.setChannelState(CHANNEL_EXTERNAL_ALARM_INPUT, OnOffType.valueOf("OFF"));
 				}
 			} else if (content.contains("<FieldDetection version=\"2.0\" xmlns=\"")) {
-				ipCameraHandler.lock.lock();
-				try {
-					byte indexInLists = (byte) ipCameraHandler.listOfRequests
-							.indexOf("/ISAPI/Smart/FieldDetection/" + nvrChannel + "01");
-					if (indexInLists >= 0) {
-						ipCameraHandler.logger.debug(
-								"!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! Storing new FieldDetection reply {}",
-								content);
-						ipCameraHandler.listOfReplies.set(indexInLists, content);
-					}
-				} finally {
-					ipCameraHandler.lock.unlock();
+				ChannelTracking tracker = ipCameraHandler.channelTrackingMap
+						.get("/ISAPI/Smart/FieldDetection/" + nvrChannel + "01");
+				if (tracker != null) {
+					ipCameraHandler.logger.debug(
+							"!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!! Storing new FieldDetection reply {}",
+							content);
+					tracker.setReply(content);
 				}
 				if (content.contains("<enabled>true</enabled>")) {
 					ipCameraHandler.setChannelState(CHANNEL_ENABLE_FIELD_DETECTION_ALARM, OnOffType.valueOf("ON"));
@@ -0,0 +1,142 @@
+/**
+ * Copyright (c) 2010-2019 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.openhab.binding.ipcamera.internal;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The {@link ImageChangeDetector} decides if a snapshot is different enough from the last one sent to the Image
+ * channel to be worth sending, so a static scene does not push the same JPEG through the event bus every poll.
+ * Identical JPEGs are found with an xxHash of the bytes. When a threshold is set, JPEGs that differ are also decoded
+ * at low resolution into a grid of average brightness, and only count as changed if a cell on average moved by more
+ * than the threshold (0-255).
+ *
+ * @author Matthew Skinner - Initial contribution
+ */
+
+public class ImageChangeDetector {
+    private static final int GRID_WIDTH = 16;
+    private static final int GRID_HEIGHT = 12;
+    // Decoding only every n'th pixel and row keeps the decode cheap, about 4 pixels per grid cell each way.
+    private static final int SAMPLES_PER_CELL = 4;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final AtomicLong skippedUpdates = new AtomicLong();
+    private volatile int threshold = 0;
+    private boolean hasLastImage = false;
+    private int lastHash = 0;
+    private int lastLength = 0;
+    private int[] lastGrid = null;
+
+    public void setThreshold(int threshold) {
+        this.threshold = Math.max(0, Math.min(255, threshold));
+    }
+
+    // The perceptual check decodes the JPEG, so callers should keep it off the netty threads when this is true.
+    public boolean isPerceptual() {
+        return threshold > 0;
+    }
+
+    public long getSkippedUpdates() {
+        return skippedUpdates.get();
+    }
+
+    // The next image is always sent, used when the Image channel is turned back on.
+    public synchronized void reset() {
+        hasLastImage = false;
+        lastGrid = null;
+    }
+
+    // The hash is the XxHash32 of the whole JPEG with a seed of 0.
+    public synchronized boolean hasChanged(byte[] jpeg, int hash) {
+        if (hasLastImage && hash == lastHash && jpeg.length == lastLength) {
+            skippedUpdates.incrementAndGet();
+            return false;
+        }
+        int[] grid = null;
+        if (threshold > 0) {
+            grid = luminanceGrid(jpeg);
+            if (grid != null && lastGrid != null && averageDifference(grid, lastGrid) < threshold) {
+                skippedUpdates.incrementAndGet();
+                return false;
+            }
+        }
+        // Only the image that was sent is compared against, so a slow change still gets through in the end.
+        hasLastImage = true;
+        lastHash = hash;
+        lastLength = jpeg.length;
+        lastGrid = grid;
+        return true;
+    }
+
+    private static int averageDifference(int[] grid, int[] otherGrid) {
+        int total = 0;
+        for (int i = 0; i < grid.length; i++) {
+            total += Math.abs(grid[i] - otherGrid[i]);
+        }
+        return total / grid.length;
+    }
+
+    private int[] luminanceGrid(byte[] jpeg) {
+        ImageReader reader = null;
+        try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(jpeg))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            reader = readers.next();
+            reader.setInput(input, true, true);
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceSubsampling(Math.max(1, reader.getWidth(0) / (GRID_WIDTH * SAMPLES_PER_CELL)),
+                    Math.max(1, reader.getHeight(0) / (GRID_HEIGHT * SAMPLES_PER_CELL)), 0, 0);
+            BufferedImage image = reader.read(0, param);
+            int[] sums = new int[GRID_WIDTH * GRID_HEIGHT];
+            int[] counts = new int[GRID_WIDTH * GRID_HEIGHT];
+            for (int y = 0; y < image.getHeight(); y++) {
+                int row = Math.min(GRID_HEIGHT - 1, y * GRID_HEIGHT / image.getHeight()) * GRID_WIDTH;
+                for (int x = 0; x < image.getWidth(); x++) {
+                    int rgb = image.getRGB(x, y);
+                    int cell = row + Math.min(GRID_WIDTH - 1, x * GRID_WIDTH / image.getWidth());
+                    // Rec. 601 luma in fixed point.
+                    sums[cell] += (((rgb >> 16) & 0xFF) * 77 + ((rgb >> 8) & 0xFF) * 150 + (rgb & 0xFF) * 29) >> 8;
+                    counts[cell]++;
+                }
+            }
+            for (int i = 0; i < sums.length; i++) {
+                sums[i] = (counts[i] == 0) ? 0 : sums[i] / counts[i];
+            }
+            return sums;
+        } catch (IOException | RuntimeException e) {
+            logger.debug("Could not decode the snapshot to compare it, it will be treated as changed: {}",
+                    e.getMessage());
+            return null;
+        } finally {
+            if (reader != null) {
+                reader.dispose();
+            }
+        }
+    }
+}
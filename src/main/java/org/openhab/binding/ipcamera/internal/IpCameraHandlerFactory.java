@@ -13,6 +13,14 @@
 
 package org.openhab.binding.ipcamera.internal;
 
+import static org.openhab.binding.ipcamera.IpCameraBindingConstants.CONFIG_SERVER_PORT;
+
+import java.math.BigDecimal;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
 import org.eclipse.jdt.annotation.NonNullByDefault;
 import org.eclipse.jdt.annotation.Nullable;
 import org.eclipse.smarthome.core.thing.Thing;
@@ -21,17 +29,41 @@ import org.eclipse.smarthome.core.thing.binding.BaseThingHandlerFactory;
 import org.eclipse.smarthome.core.thing.binding.ThingHandler;
 import org.eclipse.smarthome.core.thing.binding.ThingHandlerFactory;
 import org.openhab.binding.ipcamera.handler.IpCameraHandler;
+import org.osgi.service.component.ComponentContext;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Modified;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
 
 /**
  * The {@link IpCameraHandlerFactory} is responsible for creating things and thing
- * handlers.
+ * handlers. It also owns the netty threads and the scheduler that all cameras share, so the number of threads
+ * stays the same no matter how many cameras are added. The binding's SERVER_PORT is read here for the
+ * {@link SharedStreamServer}.
  *
  * @author Matthew Skinner - Initial contribution
  */
 @Component(service = ThingHandlerFactory.class, immediate = true, configurationPid = "binding.ipcamera")
 @NonNullByDefault
 public class IpCameraHandlerFactory extends BaseThingHandlerFactory {
+    // Only used for jobs that may block such as ONVIF calls and starting servers, netty work uses the event loops.
+    private static final int SCHEDULER_THREADS = 4;
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    // Each camera is given one of these loops, so all of its connections are handled by the same thread.
+    private final EventLoopGroup eventLoopGroup = new NioEventLoopGroup(Runtime.getRuntime().availableProcessors(),
+            new DefaultThreadFactory("ipcamera-netty"));
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(SCHEDULER_THREADS,
+            new DefaultThreadFactory("ipcamera-scheduler"));
+    // Decodes and scales the pictures for mosaics, scaled streams and the perceptual image check, one thread per core
+    // as the work is all CPU. Each user only queues one job per picture it is waiting on, so the queue stays short.
+    private final ExecutorService imageExecutor = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), new DefaultThreadFactory("ipcamera-image"));
+    private final CameraRegistry cameraRegistry = new CameraRegistry(scheduler, imageExecutor);
+    private final SharedStreamServer sharedStreamServer = new SharedStreamServer(eventLoopGroup, cameraRegistry);
 
     @Override
     public boolean supportsThingType(ThingTypeUID thingTypeUID) {
@@ -43,8 +75,41 @@ public class IpCameraHandlerFactory extends BaseThingHandlerFactory {
         ThingTypeUID thingTypeUID = thing.getThingTypeUID();
 
         if (IpCameraHandler.SUPPORTED_THING_TYPES.contains(thingTypeUID)) {
-            return new IpCameraHandler(thing);
+            return new IpCameraHandler(thing, eventLoopGroup.next(), scheduler, imageExecutor, cameraRegistry,
+                    sharedStreamServer);
         }
         return null;
     }
+
+    @Override
+    protected void activate(ComponentContext componentContext) {
+        super.activate(componentContext);
+        modified(componentContext);
+    }
+
+    // The binding's SERVER_PORT, changing it moves the shared stream server without restarting the cameras.
+    @Modified
+    protected void modified(ComponentContext componentContext) {
+        Object port = componentContext.getProperties().get(CONFIG_SERVER_PORT);
+        int serverPort = -1;
+        if (port != null) {
+            try {
+                serverPort = new BigDecimal(port.toString()).intValue();
+            } catch (NumberFormatException e) {
+                logger.warn("The binding's SERVER_PORT of {} is not a number, the shared stream server is off.", port);
+            }
+        }
+        int newPort = serverPort;
+        // Binding can block on a busy port, so keep it off the OSGi thread.
+        scheduler.execute(() -> sharedStreamServer.start(newPort));
+    }
+
+    @Override
+    protected void deactivate(ComponentContext componentContext) {
+        super.deactivate(componentContext);
+        sharedStreamServer.stop();
+        scheduler.shutdownNow();
+        imageExecutor.shutdownNow();
+        eventLoopGroup.shutdownGracefully(0, 8, TimeUnit.SECONDS);
+    }
 }
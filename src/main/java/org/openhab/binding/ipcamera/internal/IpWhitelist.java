@@ -0,0 +1,160 @@
+/**
+ * Copyright (c) 2010-2019 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.openhab.binding.ipcamera.internal;
+
+import java.math.BigInteger;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.util.NetUtil;
+
+/**
+ * The {@link IpWhitelist} is the IP_WHITELIST config parsed once into sorted ranges of addresses, so checking a
+ * connection is a binary search instead of a search through the config text. Each entry is an IPv4 or IPv6 address or
+ * a CIDR subnet inside brackets, ie (192.168.1.20)(192.168.2.0/24)(fd00::/8). DISABLE lets every address in.
+ *
+ * @author Matthew Skinner - Initial contribution
+ */
+
+public class IpWhitelist {
+    private static final Logger LOGGER = LoggerFactory.getLogger(IpWhitelist.class);
+    public static final IpWhitelist ALLOW_ALL = new IpWhitelist(true, new long[0], new long[0], new BigInteger[0],
+            new BigInteger[0]);
+
+    private final boolean allowAll;
+    // Sorted and joined where they overlap, so only the range starting before an address needs checking.
+    private final long[] ipv4Starts;
+    private final long[] ipv4Ends;
+    private final BigInteger[] ipv6Starts;
+    private final BigInteger[] ipv6Ends;
+
+    private IpWhitelist(boolean allowAll, long[] ipv4Starts, long[] ipv4Ends, BigInteger[] ipv6Starts,
+            BigInteger[] ipv6Ends) {
+        this.allowAll = allowAll;
+        this.ipv4Starts = ipv4Starts;
+        this.ipv4Ends = ipv4Ends;
+        this.ipv6Starts = ipv6Starts;
+        this.ipv6Ends = ipv6Ends;
+    }
+
+    // Entries that are not an IP literal are logged and left out, host names are not looked up.
+    public static IpWhitelist parse(String whitelist) {
+        if (whitelist == null || "DISABLE".contentEquals(whitelist.trim())) {
+            return ALLOW_ALL;
+        }
+        List<long[]> ipv4 = new ArrayList<>();
+        List<BigInteger[]> ipv6 = new ArrayList<>();
+        for (String entry : whitelist.split("[()\\s,]+")) {
+            if (entry.isEmpty()) {
+                continue;
+            }
+            int slash = entry.indexOf('/');
+            byte[] address = NetUtil
+                    .createByteArrayFromIpAddressString((slash < 0) ? entry : entry.substring(0, slash));
+            if (address == null) {
+                LOGGER.warn("IP_WHITELIST entry {} is not an IP address or subnet and will be ignored.", entry);
+                continue;
+            }
+            int bits = address.length * 8;
+            int prefix = bits;
+            if (slash >= 0) {
+                try {
+                    prefix = Integer.parseInt(entry.substring(slash + 1));
+                } catch (NumberFormatException e) {
+                    prefix = -1;
+                }
+                if (prefix < 0 || prefix > bits) {
+                    LOGGER.warn("IP_WHITELIST entry {} does not have a valid subnet size and will be ignored.", entry);
+                    continue;
+                }
+            }
+            BigInteger start = new BigInteger(1, address);
+            BigInteger hostMask = BigInteger.ONE.shiftLeft(bits - prefix).subtract(BigInteger.ONE);
+            start = start.andNot(hostMask);
+            BigInteger end = start.or(hostMask);
+            if (address.length == 4) {
+                ipv4.add(new long[] { start.longValue(), end.longValue() });
+            } else {
+                ipv6.add(new BigInteger[] { start, end });
+            }
+        }
+
+        ipv4.sort((a, b) -> Long.compare(a[0], b[0]));
+        List<long[]> joined4 = new ArrayList<>();
+        for (long[] range : ipv4) {
+            long[] last = joined4.isEmpty() ? null : joined4.get(joined4.size() - 1);
+            if (last != null && range[0] <= last[1] + 1) {
+                last[1] = Math.max(last[1], range[1]);
+            } else {
+                joined4.add(range);
+            }
+        }
+        ipv6.sort((a, b) -> a[0].compareTo(b[0]));
+        List<BigInteger[]> joined6 = new ArrayList<>();
+        for (BigInteger[] range : ipv6) {
+            BigInteger[] last = joined6.isEmpty() ? null : joined6.get(joined6.size() - 1);
+            if (last != null && range[0].compareTo(last[1].add(BigInteger.ONE)) <= 0) {
+                last[1] = last[1].max(range[1]);
+            } else {
+                joined6.add(range);
+            }
+        }
+
+        long[] ipv4Starts = new long[joined4.size()];
+        long[] ipv4Ends = new long[joined4.size()];
+        for (int i = 0; i < ipv4Starts.length; i++) {
+            ipv4Starts[i] = joined4.get(i)[0];
+            ipv4Ends[i] = joined4.get(i)[1];
+        }
+        BigInteger[] ipv6Starts = new BigInteger[joined6.size()];
+        BigInteger[] ipv6Ends = new BigInteger[joined6.size()];
+        for (int i = 0; i < ipv6Starts.length; i++) {
+            ipv6Starts[i] = joined6.get(i)[0];
+            ipv6Ends[i] = joined6.get(i)[1];
+        }
+        return new IpWhitelist(false, ipv4Starts, ipv4Ends, ipv6Starts, ipv6Ends);
+    }
+
+    public boolean isAllowed(InetAddress address) {
+        if (allowAll) {
+            return true;
+        }
+        // Java already turns IPv4 mapped IPv6 addresses into an Inet4Address.
+        if (address instanceof Inet4Address) {
+            byte[] bytes = address.getAddress();
+            long ip = (bytes[0] & 0xFFL) << 24 | (bytes[1] & 0xFF) << 16 | (bytes[2] & 0xFF) << 8 | (bytes[3] & 0xFF);
+            int index = Arrays.binarySearch(ipv4Starts, ip);
+            if (index < 0) {
+                index = -index - 2;
+            }
+            return index >= 0 && ip <= ipv4Ends[index];
+        }
+        BigInteger ip = new BigInteger(1, address.getAddress());
+        int index = Arrays.binarySearch(ipv6Starts, ip);
+        if (index < 0) {
+            index = -index - 2;
+        }
+        return index >= 0 && ip.compareTo(ipv6Ends[index]) <= 0;
+    }
+
+    public boolean isAllowAll() {
+        return allowAll;
+    }
+}
@@ -0,0 +1,54 @@
+/**
+ * Copyright (c) 2010-2019 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.openhab.binding.ipcamera.internal;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.function.Predicate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.ipfilter.AbstractRemoteAddressFilter;
+
+/**
+ * The {@link IpWhitelistFilter} is the first handler of each stream server connection and closes it as soon as it is
+ * accepted if the address is not allowed, before any HTTP is decoded. The check is asked for each connection, so a
+ * new {@link IpWhitelist} from a config change is used straight away.
+ *
+ * @author Matthew Skinner - Initial contribution
+ */
+
+public class IpWhitelistFilter extends AbstractRemoteAddressFilter<InetSocketAddress> {
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final Predicate<InetAddress> allowed;
+
+    public IpWhitelistFilter(Predicate<InetAddress> allowed) {
+        this.allowed = allowed;
+    }
+
+    @Override
+    protected boolean accept(ChannelHandlerContext ctx, InetSocketAddress remoteAddress) throws Exception {
+        return allowed.test(remoteAddress.getAddress());
+    }
+
+    @Override
+    protected ChannelFuture channelRejected(ChannelHandlerContext ctx, InetSocketAddress remoteAddress) {
+        logger.warn("The request made from ({}) was not in the whitelist and will be ignored.",
+                remoteAddress.getAddress().getHostAddress());
+        return null;
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright (c) 2010-2019 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.openhab.binding.ipcamera.internal;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.DefaultByteBufHolder;
+import io.netty.buffer.Unpooled;
+
+/**
+ * The {@link JpegFrame} is a single JPEG from a camera, made once when it arrives and then shared by the image
+ * channel, the GIF preroll and every stream server connection instead of each taking a copy. The content is read
+ * only and reference counted, anything that keeps the frame must retain it and release it when done.
+ *
+ * The version goes up each time the picture changes, a snapshot that is the same as the last one keeps its frame.
+ *
+ * @author Matthew Skinner - Initial contribution
+ */
+
+public class JpegFrame extends DefaultByteBufHolder {
+    private final long version;
+    private final int hash;
+    private final long captureTime;
+
+    // The frame takes over the reference to content.
+    public JpegFrame(ByteBuf content, long version, int hash, long captureTime) {
+        super(content.asReadOnly());
+        this.version = version;
+        this.hash = hash;
+        this.captureTime = captureTime;
+    }
+
+    // Wraps the array without copying it, the array must not be changed afterwards.
+    public static JpegFrame wrap(byte[] jpeg, long version, int hash) {
+        return new JpegFrame(Unpooled.wrappedBuffer(jpeg), version, hash, System.currentTimeMillis());
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    // The XxHash32 of the JPEG.
+    public int getHash() {
+        return hash;
+    }
+
+    // The hash is included so a version number that is re-used after a restart does not match an old picture.
+    public String getETag() {
+        return "\"" + Integer.toHexString(hash) + "-" + Long.toHexString(version) + "\"";
+    }
+
+    // Milliseconds since the epoch when the frame finished arriving from the camera.
+    public long getCaptureTime() {
+        return captureTime;
+    }
+
+    public int length() {
+        return content().readableBytes();
+    }
+
+    @Override
+    public JpegFrame replace(ByteBuf content) {
+        return new JpegFrame(content, version, hash, captureTime);
+    }
+
+    @Override
+    public JpegFrame retain() {
+        super.retain();
+        return this;
+    }
+
+    @Override
+    public JpegFrame retain(int increment) {
+        super.retain(increment);
+        return this;
+    }
+
+    @Override
+    public JpegFrame touch() {
+        super.touch();
+        return this;
+    }
+
+    @Override
+    public JpegFrame touch(Object hint) {
+        super.touch(hint);
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "JpegFrame(version:" + version + " bytes:" + length() + " captureTime:" + captureTime + ")";
+    }
+}
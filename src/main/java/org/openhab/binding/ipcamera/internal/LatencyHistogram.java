@@ -0,0 +1,119 @@
+/**
+ * Copyright (c) 2010-2019 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.openhab.binding.ipcamera.internal;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The {@link LatencyHistogram} records how long a camera takes to answer one {@link RequestType} of request. Buckets
+ * are log-linear in the same way as a HDR histogram, each power of two is split into 16 buckets so any percentile is
+ * within 1/16 of the real value, from 1 microsecond up to many hours, in a fixed 4KB with no locking.
+ *
+ * @author Matthew Skinner - Initial contribution
+ */
+
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_VALUE_BITS = 36; // About 19 hours in microseconds.
+    private static final long MAX_VALUE = (1L << MAX_VALUE_BITS) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray((MAX_VALUE_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKETS);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong totalMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    public void recordMicros(long micros) {
+        long value = Math.max(0, Math.min(micros, MAX_VALUE));
+        counts.incrementAndGet(bucketIndex(value));
+        totalCount.incrementAndGet();
+        totalMicros.addAndGet(value);
+        maxMicros.accumulateAndGet(value, Math::max);
+    }
+
+    public void recordTimeout() {
+        timeouts.incrementAndGet();
+    }
+
+    public long getCount() {
+        return totalCount.get();
+    }
+
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    public long getMaxMicros() {
+        return maxMicros.get();
+    }
+
+    public long getMeanMicros() {
+        long count = totalCount.get();
+        return (count == 0) ? 0 : totalMicros.get() / count;
+    }
+
+    // The highest value of the bucket the percentile falls in, so the result is never lower than the real value.
+    public long getPercentileMicros(double percentile) {
+        long count = totalCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long wanted = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= wanted) {
+                return Math.min(bucketHighestValue(i), maxMicros.get());
+            }
+        }
+        return maxMicros.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        totalCount.set(0);
+        totalMicros.set(0);
+        maxMicros.set(0);
+        timeouts.set(0);
+    }
+
+    // Values below 16 get a bucket each, above that the top 5 bits of the value pick the bucket.
+    private static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    private static long bucketHighestValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    @Override
+    public String toString() {
+        return "count:" + getCount() + " timeouts:" + getTimeouts() + " meanMs:" + getMeanMicros() / 1000
+                + " p50Ms:" + getPercentileMicros(50) / 1000 + " p90Ms:" + getPercentileMicros(90) / 1000
+                + " p99Ms:" + getPercentileMicros(99) / 1000 + " maxMs:" + getMaxMicros() / 1000;
+    }
+}
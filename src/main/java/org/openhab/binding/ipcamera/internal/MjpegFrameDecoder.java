@@ -0,0 +1,248 @@
+/**
+ * Copyright (c) 2010-2019 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.openhab.binding.ipcamera.internal;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+
+/**
+ * The {@link MjpegFrameDecoder} splits the body of a multipart/x-mixed-replace MJPEG stream back into single JPEGs.
+ * The body is fed in as it arrives in whatever sized pieces the network gives, so a boundary or the part headers can
+ * be split over several reads. No bytes are copied, each {@link JpegFrame} is made of retained slices of the buffers
+ * that came off the socket.
+ *
+ * Parts with a Content-Length header are cut at that length, parts without one are cut at the next boundary.
+ *
+ * @author Matthew Skinner - Initial contribution
+ */
+
+public class MjpegFrameDecoder {
+    private static final byte[] END_OF_HEADERS = { '\r', '\n', '\r', '\n' };
+    // Past these sizes the stream is not what we expect, so the data is dropped and the next boundary looked for.
+    private static final int MAX_HEADERS_LENGTH = 8 * 1024;
+    private static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+    private static final int MAX_COMPONENTS = 1024;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final ByteBufAllocator alloc;
+    private final Consumer<JpegFrame> frameListener;
+    // The boundary without any leading dashes, as cameras do not agree on whether the header includes them.
+    private final byte[] boundary;
+    private final CompositeByteBuf cumulation;
+    private boolean readingHeaders = true;
+    private int contentLength = -1;
+    // Where to carry on looking for the boundary, so bytes already searched are not searched again on the next read.
+    private int searchFrom = 0;
+    private long framesDecoded = 0;
+    private long partsDropped = 0;
+
+    // The listener is called on the thread that calls decode() and must release each frame it is given.
+    public MjpegFrameDecoder(String contentType, ByteBufAllocator alloc, Consumer<JpegFrame> frameListener) {
+        this.alloc = alloc;
+        this.frameListener = frameListener;
+        this.boundary = findBoundary(contentType).getBytes(StandardCharsets.US_ASCII);
+        cumulation = alloc.compositeBuffer(MAX_COMPONENTS);
+    }
+
+    private static String findBoundary(String contentType) {
+        String bound = "";
+        int index = contentType.toLowerCase().indexOf("boundary=");
+        if (index >= 0) {
+            bound = contentType.substring(index + 9);
+            int end = bound.indexOf(';');
+            if (end >= 0) {
+                bound = bound.substring(0, end);
+            }
+            bound = bound.trim();
+            if (bound.length() > 1 && bound.startsWith("\"") && bound.endsWith("\"")) {
+                bound = bound.substring(1, bound.length() - 1);
+            }
+        }
+        while (bound.startsWith("-")) {
+            bound = bound.substring(1);
+        }
+        // Not to spec, but some cameras leave the boundary out of the header and use "--" followed by a CRLF.
+        return bound.isEmpty() ? "--\r\n" : bound;
+    }
+
+    public long getFramesDecoded() {
+        return framesDecoded;
+    }
+
+    public long getPartsDropped() {
+        return partsDropped;
+    }
+
+    // Does not take over the reference to data, what is kept is retained.
+    public void decode(ByteBuf data) {
+        if (!data.isReadable()) {
+            return;
+        }
+        cumulation.addComponent(true, data.retainedSlice());
+        while (readingHeaders ? readHeaders() : readBody()) {
+            // Keep going while a whole part was found, one read can hold many small frames.
+        }
+        // Discarding moves every index down, so searchFrom is kept relative to the reader index.
+        int searchOffset = searchFrom - cumulation.readerIndex();
+        cumulation.discardReadComponents();
+        searchFrom = cumulation.readerIndex() + searchOffset;
+    }
+
+    private boolean readHeaders() {
+        int start = cumulation.readerIndex();
+        int end = indexOf(END_OF_HEADERS, Math.max(start, searchFrom));
+        if (end < 0) {
+            if (cumulation.writerIndex() - start > MAX_HEADERS_LENGTH) {
+                logger.debug("MJPEG part headers were longer than {} bytes, skipping ahead.", MAX_HEADERS_LENGTH);
+                partsDropped++;
+                skipTo(cumulation.writerIndex() - END_OF_HEADERS.length);
+            } else {
+                searchFrom = Math.max(start, cumulation.writerIndex() - END_OF_HEADERS.length + 1);
+            }
+            return false;
+        }
+        contentLength = findContentLength(cumulation.toString(start, end - start, StandardCharsets.US_ASCII));
+        skipTo(end + END_OF_HEADERS.length);
+        readingHeaders = false;
+        return true;
+    }
+
+    private boolean readBody() {
+        int start = cumulation.readerIndex();
+        int length;
+        int next;
+        if (contentLength >= 0) {
+            if (cumulation.writerIndex() - start < contentLength) {
+                return false;
+            }
+            length = contentLength;
+            next = start + contentLength;
+        } else {
+            int found = indexOfBoundary(Math.max(start, searchFrom));
+            if (found < 0) {
+                if (cumulation.writerIndex() - start > MAX_FRAME_LENGTH) {
+                    logger.debug("MJPEG frame was larger than {} bytes without a boundary, skipping ahead.",
+                            MAX_FRAME_LENGTH);
+                    partsDropped++;
+                    skipTo(cumulation.writerIndex() - boundary.length);
+                    readingHeaders = true;
+                } else {
+                    searchFrom = Math.max(start, cumulation.writerIndex() - boundary.length + 1);
+                }
+                return false;
+            }
+            next = found;
+            // Trim the "--" and line break that come before the boundary.
+            int end = found;
+            while (end > start && cumulation.getByte(end - 1) == '-') {
+                end--;
+            }
+            while (end > start && (cumulation.getByte(end - 1) == '\n' || cumulation.getByte(end - 1) == '\r')) {
+                end--;
+            }
+            length = end - start;
+        }
+        if (length > 1 && cumulation.getUnsignedByte(start) == 0xFF && cumulation.getUnsignedByte(start + 1) == 0xD8) {
+            emitFrame(start, length);
+        } else {
+            partsDropped++;
+        }
+        skipTo(next);
+        readingHeaders = true;
+        return true;
+    }
+
+    private void emitFrame(int start, int length) {
+        List<ByteBuf> pieces = cumulation.decompose(start, length);
+        ByteBuf content;
+        if (pieces.size() == 1) {
+            content = pieces.get(0).retain();
+        } else {
+            CompositeByteBuf frameBuf = alloc.compositeBuffer(Math.max(pieces.size(), 2));
+            for (ByteBuf piece : pieces) {
+                frameBuf.addComponent(true, piece.retain());
+            }
+            content = frameBuf;
+        }
+        framesDecoded++;
+        // Stream frames are not hashed, working it out is left to anything that needs it.
+        frameListener.accept(new JpegFrame(content, framesDecoded, 0, System.currentTimeMillis()));
+    }
+
+    private void skipTo(int index) {
+        cumulation.readerIndex(Math.min(index, cumulation.writerIndex()));
+        searchFrom = cumulation.readerIndex();
+    }
+
+    private static int findContentLength(String headers) {
+        for (String line : headers.split("\r?\n")) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("content-length")) {
+                try {
+                    return Integer.parseInt(line.substring(colon + 1).trim());
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    // Only a boundary at the start of a line counts, the same bytes can turn up inside a JPEG.
+    private int indexOfBoundary(int from) {
+        int found;
+        while ((found = indexOf(boundary, from)) >= 0) {
+            int before = found;
+            while (before > cumulation.readerIndex() && cumulation.getByte(before - 1) == '-') {
+                before--;
+            }
+            if (before == cumulation.readerIndex() || cumulation.getByte(before - 1) == '\n') {
+                return found;
+            }
+            from = found + 1;
+        }
+        return -1;
+    }
+
+    private int indexOf(byte[] needle, int from) {
+        int last = cumulation.writerIndex() - needle.length;
+        while (from <= last) {
+            int found = cumulation.indexOf(from, last + 1, needle[0]);
+            if (found < 0) {
+                return -1;
+            }
+            int i = 1;
+            while (i < needle.length && cumulation.getByte(found + i) == needle[i]) {
+                i++;
+            }
+            if (i == needle.length) {
+                return found;
+            }
+            from = found + 1;
+        }
+        return -1;
+    }
+
+    public void release() {
+        cumulation.release();
+    }
+}
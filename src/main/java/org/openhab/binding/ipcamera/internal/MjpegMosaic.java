@@ -0,0 +1,321 @@
+/**
+ * Copyright (c) 2010-2019 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.openhab.binding.ipcamera.internal;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.openhab.binding.ipcamera.handler.IpCameraHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+
+/**
+ * The {@link MjpegMosaic} is one MJPEG stream showing the latest picture of several cameras in a grid, so a screen
+ * showing many cameras needs one connection instead of one per camera. The grid is made once per tick however many
+ * viewers are watching, and each camera's picture is only decoded and scaled again when it has changed, with the
+ * cameras worked on in parallel. Viewers that asked for the same cameras, width and frame rate share one mosaic, see
+ * {@link CameraRegistry}.
+ *
+ * @author Matthew Skinner - Initial contribution
+ */
+
+public class MjpegMosaic implements Runnable {
+    public static final int MAX_CAMERAS = 36;
+    public static final int MIN_WIDTH = 160;
+    public static final int MAX_WIDTH = 3840;
+    public static final int MAX_FPS = 10;
+    public static final int DEFAULT_WIDTH = 1280;
+    public static final int DEFAULT_FPS = 2;
+    private static final String BOUNDARY = "ipcameraMosaic";
+    private static final float JPEG_QUALITY = 0.75f;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final CameraRegistry cameraRegistry;
+    private final Executor tileExecutor;
+    private final String key;
+    private final int fps;
+    private final int columns;
+    private final int tileWidth;
+    private final int tileHeight;
+    private final Tile[] tiles;
+    private final List<MjpegViewer> viewers = new CopyOnWriteArrayList<>();
+    // Only one grid is made at a time, a tick that comes while the last is still being made is skipped.
+    private final AtomicBoolean busy = new AtomicBoolean();
+    private ScheduledFuture<?> tickJob = null;
+    private long version = 0;
+
+    public MjpegMosaic(String key, List<String> thingIds, int width, int fps, CameraRegistry cameraRegistry,
+            Executor tileExecutor) {
+        this.key = key;
+        this.cameraRegistry = cameraRegistry;
+        this.tileExecutor = tileExecutor;
+        this.fps = Math.max(1, Math.min(MAX_FPS, fps));
+        columns = (int) Math.ceil(Math.sqrt(thingIds.size()));
+        tileWidth = Math.max(MIN_WIDTH, Math.min(MAX_WIDTH, width)) / columns;
+        tileHeight = tileWidth * 9 / 16;
+        tiles = new Tile[thingIds.size()];
+        for (int i = 0; i < tiles.length; i++) {
+            tiles[i] = new Tile(thingIds.get(i));
+        }
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public synchronized void start(ScheduledExecutorService scheduler) {
+        if (tickJob == null) {
+            logger.debug("Starting a {} camera mosaic at {} fps.", tiles.length, fps);
+            tickJob = scheduler.scheduleAtFixedRate(this, 0, 1000 / fps, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Lets the cameras close their streams once nothing else is watching them.
+    public synchronized void stop() {
+        if (tickJob != null) {
+            tickJob.cancel(false);
+            tickJob = null;
+        }
+        for (Tile tile : tiles) {
+            tile.setSource(null);
+        }
+        logger.debug("Stopped a {} camera mosaic.", tiles.length);
+    }
+
+    public void addViewer(MjpegViewer viewer) {
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        response.headers().add(HttpHeaderNames.CONTENT_TYPE, "multipart/x-mixed-replace; boundary=" + BOUNDARY);
+        response.headers().set(HttpHeaderNames.CACHE_CONTROL, HttpHeaderValues.NO_CACHE);
+        response.headers().add("Access-Control-Allow-Origin", "*");
+        viewer.getChannel().writeAndFlush(response);
+        viewers.add(viewer);
+    }
+
+    // Returns true when no viewers are left.
+    public boolean removeViewer(Channel channel) {
+        viewers.removeIf(viewer -> viewer.getChannel() == channel);
+        return viewers.isEmpty();
+    }
+
+    @Override
+    public void run() {
+        if (viewers.isEmpty() || !busy.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            @SuppressWarnings("unchecked")
+            CompletableFuture<BufferedImage>[] pictures = new CompletableFuture[tiles.length];
+            synchronized (this) {
+                if (tickJob == null) {
+                    busy.set(false);
+                    return;
+                }
+                for (int i = 0; i < tiles.length; i++) {
+                    Tile tile = tiles[i];
+                    IpCameraHandler camera = cameraRegistry.getCamera(tile.thingId);
+                    tile.setSource(camera);
+                    if (camera == null) {
+                        pictures[i] = CompletableFuture.completedFuture(tile.picture);
+                    } else {
+                        // The frame is taken on the camera's event loop, then decoded and scaled off the netty threads.
+                        pictures[i] = camera.retainNewestFrame().thenApplyAsync(tile::update, tileExecutor);
+                    }
+                }
+            }
+            CompletableFuture.allOf(pictures).whenComplete((done, error) -> {
+                try {
+                    if (error != null) {
+                        logger.debug("Could not make the camera mosaic: {}", error.getMessage());
+                    } else {
+                        send(compose(pictures));
+                    }
+                } catch (IOException | RuntimeException e) {
+                    logger.debug("Could not make the camera mosaic: {}", e.getMessage());
+                } finally {
+                    busy.set(false);
+                }
+            });
+        } catch (RuntimeException e) {
+            // Thrown out of here the tick would never run again.
+            busy.set(false);
+            logger.debug("Could not make the camera mosaic: {}", e.getMessage());
+        }
+    }
+
+    private JpegFrame compose(CompletableFuture<BufferedImage>[] pictures) throws IOException {
+        int rows = (tiles.length + columns - 1) / columns;
+        BufferedImage grid = new BufferedImage(columns * tileWidth, rows * tileHeight, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = grid.createGraphics();
+        try {
+            for (int i = 0; i < pictures.length; i++) {
+                BufferedImage picture = pictures[i].join();
+                if (picture != null) {
+                    graphics.drawImage(picture, (i % columns) * tileWidth, (i / columns) * tileHeight, null);
+                }
+            }
+        } finally {
+            graphics.dispose();
+        }
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream(grid.getWidth() * grid.getHeight() / 4);
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        try (ImageOutputStream output = ImageIO.createImageOutputStream(jpeg)) {
+            writer.setOutput(output);
+            ImageWriteParam writeParam = writer.getDefaultWriteParam();
+            writeParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            writeParam.setCompressionQuality(JPEG_QUALITY);
+            writer.write(null, new IIOImage(grid, null, null), writeParam);
+        } finally {
+            writer.dispose();
+        }
+        return JpegFrame.wrap(jpeg.toByteArray(), ++version, 0);
+    }
+
+    private void send(JpegFrame frame) {
+        ByteBuf partHeader = Unpooled.copiedBuffer("\r\n--" + BOUNDARY
+                + "\r\nContent-Type: image/jpeg\r\nContent-Length: " + frame.length() + "\r\n\r\n",
+                StandardCharsets.US_ASCII);
+        try {
+            for (MjpegViewer viewer : viewers) {
+                viewer.offer(partHeader, frame);
+            }
+        } finally {
+            partHeader.release();
+            frame.release();
+        }
+    }
+
+    // One camera's place in the grid. The scaled picture is kept so an unchanged camera costs nothing per tick.
+    private class Tile {
+        private final String thingId;
+        private IpCameraHandler source = null;
+        private boolean streaming = false;
+        private volatile BufferedImage picture = null;
+        private long lastVersion = -1;
+        private long lastCaptureTime = -1;
+
+        Tile(String thingId) {
+            this.thingId = thingId;
+        }
+
+        // Keeps the camera sending frames while it is in the mosaic, and follows it when the thing is re-created. A
+        // camera that can not stream MJPEG shows its last snapshot, until ONVIF finds it a stream.
+        void setSource(IpCameraHandler camera) {
+            boolean canStream = (camera != null && camera.canStreamMjpeg());
+            if (camera == source && canStream == streaming) {
+                return;
+            }
+            if (streaming) {
+                source.setupMosaicSource(false);
+            }
+            source = camera;
+            streaming = canStream;
+            if (streaming) {
+                source.setupMosaicSource(true);
+            }
+        }
+
+        // Takes over the reference to the frame, which is null when the camera has not sent a picture yet.
+        BufferedImage update(JpegFrame frame) {
+            if (frame == null) {
+                return picture;
+            }
+            try {
+                if (frame.getVersion() == lastVersion && frame.getCaptureTime() == lastCaptureTime) {
+                    return picture;
+                }
+                lastVersion = frame.getVersion();
+                lastCaptureTime = frame.getCaptureTime();
+                picture = scale(frame);
+            } catch (IOException | RuntimeException e) {
+                logger.debug("Could not decode the picture from {} for the mosaic: {}", thingId, e.getMessage());
+            } finally {
+                frame.release();
+            }
+            return picture;
+        }
+
+        // Fits the picture inside the tile keeping its shape, with black bars to fill any space left over.
+        private BufferedImage scale(JpegFrame frame) throws IOException {
+            BufferedImage image;
+            ImageReader reader = null;
+            try (ImageInputStream input = ImageIO
+                    .createImageInputStream(new ByteBufInputStream(frame.content().duplicate()))) {
+                Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+                if (!readers.hasNext()) {
+                    throw new IOException("The frame could not be read as a JPEG");
+                }
+                reader = readers.next();
+                reader.setInput(input, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                int subsampling = Math.max(1,
+                        Math.min(reader.getWidth(0) / tileWidth, reader.getHeight(0) / tileHeight));
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                image = reader.read(0, param);
+            } finally {
+                if (reader != null) {
+                    reader.dispose();
+                }
+            }
+            double ratio = Math.min((double) tileWidth / image.getWidth(), (double) tileHeight / image.getHeight());
+            int width = Math.max(1, (int) (image.getWidth() * ratio));
+            int height = Math.max(1, (int) (image.getHeight() * ratio));
+            BufferedImage scaled = new BufferedImage(tileWidth, tileHeight, BufferedImage.TYPE_INT_RGB);
+            Graphics2D graphics = scaled.createGraphics();
+            try {
+                graphics.setColor(Color.BLACK);
+                graphics.fillRect(0, 0, tileWidth, tileHeight);
+                graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                        RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                graphics.drawImage(image, (tileWidth - width) / 2, (tileHeight - height) / 2, width, height, null);
+            } finally {
+                graphics.dispose();
+            }
+            return scaled;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright (c) 2010-2019 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.openhab.binding.ipcamera.internal;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+
+/**
+ * The {@link MjpegViewer} is one connection watching the MJPEG stream from the stream server. A viewer that can not
+ * keep up has whole frames skipped while its socket buffer is over the high water mark, so a slow client only lowers
+ * its own frame rate and never holds more than about one frame of memory past the water mark.
+ *
+ * A viewer can also ask for a lower frame rate with ?fps= and a smaller picture with ?width=, see
+ * {@link ScaledMjpegVariant}.
+ *
+ * @author Matthew Skinner - Initial contribution
+ */
+
+public class MjpegViewer {
+    public static final AttributeKey<MjpegViewer> VIEWER = AttributeKey.valueOf("ipcamera.mjpegViewer");
+
+    private final Channel channel;
+    private final int minFrameIntervalMs;
+    private final int width;
+    private volatile long lastSentTime = 0;
+    private final AtomicLong framesSent = new AtomicLong();
+    private final AtomicLong framesDropped = new AtomicLong();
+
+    // 0 for fps or width means as the camera sends it.
+    public MjpegViewer(Channel channel, int fps, int width) {
+        this.channel = channel;
+        this.minFrameIntervalMs = (fps > 0) ? 1000 / fps : 0;
+        this.width = Math.max(0, width);
+    }
+
+    public Channel getChannel() {
+        return channel;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    // 10% slack so a camera that sends at about the rate asked for is not cut down to every second frame.
+    public boolean isDue(long captureTime) {
+        return minFrameIntervalMs == 0 || captureTime - lastSentTime >= minFrameIntervalMs * 9 / 10;
+    }
+
+    // Sends the part header and the frame, or neither. Returns false if the frame was dropped. A frame older than the
+    // last one sent is never sent, so the picture can not go back in time when the first frame or a scaled frame is
+    // late. Capture times are compared as versions start again with each stream and differ from snapshot versions.
+    public boolean offer(ByteBuf partHeader, JpegFrame frame) {
+        if (frame.getCaptureTime() < lastSentTime) {
+            return false;
+        }
+        if (!channel.isWritable()) {
+            framesDropped.incrementAndGet();
+            return false;
+        }
+        channel.write(partHeader.retainedDuplicate(), channel.voidPromise());
+        channel.writeAndFlush(frame.content().retainedDuplicate(), channel.voidPromise());
+        lastSentTime = frame.getCaptureTime();
+        framesSent.incrementAndGet();
+        return true;
+    }
+
+    // For frames skipped before they got to offer(), ie the scaled picture was not ready in time.
+    public void frameDropped() {
+        framesDropped.incrementAndGet();
+    }
+
+    public long getFramesSent() {
+        return framesSent.get();
+    }
+
+    public long getFramesDropped() {
+        return framesDropped.get();
+    }
+
+    @Override
+    public String toString() {
+        return channel.remoteAddress() + " sent:" + framesSent + " dropped:" + framesDropped;
+    }
+}
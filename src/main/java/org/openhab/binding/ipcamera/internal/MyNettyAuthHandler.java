@@ -13,8 +13,8 @@
 
 package org.openhab.binding.ipcamera.internal;
 
-import java.security.MessageDigest;
-import java.util.Random;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
 
 import org.eclipse.smarthome.core.thing.binding.ThingHandler;
 import org.openhab.binding.ipcamera.handler.IpCameraHandler;
@@ -24,6 +24,7 @@ import org.slf4j.LoggerFactory;
 import io.netty.channel.ChannelDuplexHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpUtil;
 
 /**
  * The {@link MyNettyAuthHandler} is responsible for handling the basic and digest auths
@@ -38,8 +39,7 @@ public class MyNettyAuthHandler extends ChannelDuplexHandler {
     private IpCameraHandler myHandler;
     private String username, password;
     private String httpMethod, httpUrl;
-    private byte ncCounter = 0;
-    String nonce = "empty", opaque = "empty", qop = "empty", realm = "empty";
+    private boolean isResend = false; // true if the request in flight is already the resend after a 401.
 
     public MyNettyAuthHandler(String user, String pass, String method, String url, ThingHandler handle) {
         myHandler = (IpCameraHandler) handle;
@@ -61,21 +61,8 @@ public class MyNettyAuthHandler extends ChannelDuplexHandler {
         logger.trace("MyNettyAuthHandler is now setup for \t{}:{}", method, url);
     }
 
-    private String calcMD5Hash(String toHash) {
-        try {
-            MessageDigest messageDigest = MessageDigest.getInstance("MD5");
-            byte[] array = messageDigest.digest(toHash.getBytes());
-            StringBuffer stringBuffer = new StringBuffer();
-            for (int i = 0; i < array.length; ++i) {
-                stringBuffer.append(Integer.toHexString((array[i] & 0xFF) | 0x100).substring(1, 3));
-            }
-            messageDigest = null;
-            array = null;
-            return stringBuffer.toString();
-        } catch (java.security.NoSuchAlgorithmException e) {
-            logger.error("NoSuchAlgorithmException error when calculating MD5 hash");
-        }
-        return null;
+    public void setResend(boolean resend) {
+        isResend = resend;
     }
 
     private String searchString(String rawString, String searchedString) {
@@ -113,9 +100,16 @@ public class MyNettyAuthHandler extends ChannelDuplexHandler {
 
     // Method can be used a few ways. processAuth(null, string,string, false) to return the digest on demand, and
     // processAuth(challString, string,string, true) to auto send new packet
-    // First run it should not have authenticate as null
-    // nonce is reused if authenticate is null so the NC needs to increment to allow this//
+    // The challenge is cached by the IpCameraHandler for all channels, so authenticate can be null once the camera
+    // has sent one. The nonce is reused and the NC increments to allow this//
     public String processAuth(String authenticate, String httpMethod, String requestURI, boolean reSend) {
+        return processAuth(authenticate, httpMethod, requestURI, reSend, null);
+    }
+
+    // When reSend is true the replyFuture of the original request is handed to the new request, so whoever is
+    // waiting gets the reply to the authenticated request instead of the 401.
+    private String processAuth(String authenticate, String httpMethod, String requestURI, boolean reSend,
+            CompletableFuture<String> replyFuture) {
         if (authenticate != null) {
             if (authenticate.contains("Basic realm=\"")) {
                 if (myHandler.useDigestAuth == true) {
@@ -123,55 +117,47 @@ public class MyNettyAuthHandler extends ChannelDuplexHandler {
                 }
                 logger.debug("Setting up the camera to use Basic Auth and resending last request with correct auth.");
                 myHandler.setBasicAuth(true);
-                myHandler.sendHttpRequest(httpMethod, requestURI, null);
+                myHandler.sendHttpRequest(httpMethod, requestURI, null, replyFuture);
                 return "Using Basic";
             }
 
             /////// Fresh Digest Authenticate method follows as Basic is already handled and returned ////////
-            realm = searchString(authenticate, "realm=\"");
+            String realm = searchString(authenticate, "realm=\"");
             if (realm == null) {
                 logger.warn("Could not find a valid WWW-Authenticate response in :{}", authenticate);
                 return "Error";
             }
-            nonce = searchString(authenticate, "nonce=\"");
-            opaque = searchString(authenticate, "opaque=\"");
-            qop = searchString(authenticate, "qop=\"");
+            String qop = searchString(authenticate, "qop=\"");
 
-            if (!qop.isEmpty() && !realm.isEmpty()) {
+            String lowerCase = authenticate.toLowerCase();
+            if (lowerCase.contains("stale=true") || lowerCase.contains("stale=\"true\"")) {
+                logger.debug("Camera reported stale=true which normally means the NONCE has expired.");
+            } else if (isResend) {
+                // Resending with a fresh nonce would only get another 401 and loop forever.
+                logger.warn("Camera at {} refused the DIGEST login, check the username and password.",
+                        myHandler.ipAddress);
+                return "Error:Digest login refused";
+            }
+
+            if (qop != null && !qop.isEmpty() && !realm.isEmpty()) {
                 myHandler.useDigestAuth = true;
             } else {
                 logger.warn(
                         "!!!! Something is wrong with the reply back from the camera. WWW-Authenticate header: qop:{}, realm:{}",
                         qop, realm);
             }
-
-            String stale = searchString(authenticate, "stale=\"");
-            if (stale == null) {
-            } else if (stale.equalsIgnoreCase("true")) {
-                logger.debug("Camera reported stale=true which normally means the NONCE has expired.");
-            }
+            myHandler.setDigestChallenge(new DigestChallenge(realm, searchString(authenticate, "nonce=\""),
+                    searchString(authenticate, "opaque=\""), qop, myHandler.getDigestChallenge()));
         }
 
-        // create the MD5 hashes
-        String ha1 = username + ":" + realm + ":" + password;
-        ha1 = calcMD5Hash(ha1);
-        Random random = new Random();
-        String cnonce = Integer.toHexString(random.nextInt());
-        random = null;
-        ncCounter = (ncCounter > 125) ? 1 : ++ncCounter;
-        String nc = String.format("%08X", ncCounter); // 8 digit hex number
-        String ha2 = httpMethod + ":" + requestURI;
-        ha2 = calcMD5Hash(ha2);
-
-        String response = ha1 + ":" + nonce + ":" + nc + ":" + cnonce + ":" + qop + ":" + ha2;
-        response = calcMD5Hash(response);
-
-        String digestString = "username=\"" + username + "\", realm=\"" + realm + "\", nonce=\"" + nonce + "\", uri=\""
-                + requestURI + "\", cnonce=\"" + cnonce + "\", nc=" + nc + ", qop=\"" + qop + "\", response=\""
-                + response + "\", opaque=\"" + opaque + "\"";
+        DigestChallenge challenge = myHandler.getDigestChallenge();
+        if (challenge == null) {
+            return "Error:No challenge from the camera yet";
+        }
+        String digestString = challenge.createDigest(username, password, httpMethod, requestURI);
 
         if (reSend) {
-            myHandler.sendHttpRequest(httpMethod, requestURI, digestString);
+            myHandler.sendHttpRequest(httpMethod, requestURI, digestString, replyFuture);
             return null;
         }
         return digestString;
@@ -190,39 +176,40 @@ public class MyNettyAuthHandler extends ChannelDuplexHandler {
                             if (name.toString().equalsIgnoreCase("WWW-Authenticate")) {
                                 authenticate = value.toString();
                             }
-                            if (name.toString().equalsIgnoreCase("Connection")
-                                    && value.toString().contains("keep-alive")) {
-                                closeConnection = false;
-                            }
                         }
                     }
-
-                    myHandler.lock.lock();
-                    try {
-                        byte indexInLists = (byte) myHandler.listOfChannels.indexOf(ctx.channel());
-                        if (indexInLists >= 0) {
-                            if (closeConnection) {
-                                // Need to mark the channel as closing so the digest gets a new ch
-                                myHandler.listOfChStatus.set(indexInLists, (byte) 0);
-                                logger.debug("401: Mark as closing, the  channel:{} \t{}:{}", indexInLists, httpMethod,
-                                        httpUrl);
-                            } else {
-                                myHandler.listOfChStatus.set(indexInLists, (byte) 2);
-                                logger.debug("401: Mark to re-use,  the channel:{} \t{}:{}", indexInLists, httpMethod,
-                                        httpUrl);
-                            }
-
+                    closeConnection = !HttpUtil.isKeepAlive(response);
+
+                    // Taken before the channel is released, as the pool may hand it straight to a waiting request.
+                    CompletableFuture<String> replyFuture = ctx.channel().attr(ChannelTracking.REPLY_FUTURE)
+                            .getAndSet(null);
+                    ChannelTracking tracker = myHandler.getTracker(ctx.channel());
+                    if (tracker != null) {
+                        if (closeConnection) {
+                            // Need to mark the channel as closing so the digest gets a new ch
+                            tracker.setStatus(ChannelTracking.Status.CLOSING);
+                            logger.debug("401: Mark as closing, the  channel \t{}:{}", httpMethod, httpUrl);
                         } else {
-                            logger.warn("!!!! 401: Could not find the channel to mark as closing or reusable");
+                            tracker.setStatus(ChannelTracking.Status.REUSABLE);
+                            logger.debug("401: Mark to re-use,  the channel \t{}:{}", httpMethod, httpUrl);
+                            // Back into the pool so the resend below can go out on this same connection.
+                            myHandler.releaseChannel(ctx.channel());
                         }
-                    } finally {
-                        myHandler.lock.unlock();
+                    } else {
+                        logger.warn("!!!! 401: Could not find the channel to mark as closing or reusable");
                     }
 
                     if (authenticate != null) {
-                        processAuth(authenticate, httpMethod, httpUrl, true);
+                        String result = processAuth(authenticate, httpMethod, httpUrl, true, replyFuture);
+                        if (result != null && result.startsWith("Error") && replyFuture != null) {
+                            replyFuture.completeExceptionally(new IOException("Camera refused the login: " + result));
+                        }
                     } else {
                         logger.warn("Camera gave a 401 reply and did not provide a WWW-Authenticate header");
+                        if (replyFuture != null) {
+                            replyFuture.completeExceptionally(
+                                    new IOException("Camera gave a 401 reply without a WWW-Authenticate header"));
+                        }
                     }
                     if (closeConnection) {
                         ctx.close();// needs to be here
@@ -244,6 +231,5 @@ public class MyNettyAuthHandler extends ChannelDuplexHandler {
         logger = null;
         myHandler = null;
         username = password = httpMethod = httpUrl = null;
-        nonce = opaque = qop = realm = null;
     }
 }
@@ -0,0 +1,46 @@
+/**
+ * Copyright (c) 2010-2019 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.openhab.binding.ipcamera.internal;
+
+/**
+ * The {@link RequestType} is the class of a HTTP request sent to a camera, in order of priority. When all connections
+ * to a camera are busy, waiting requests are sent highest priority first.
+ *
+ * @author Matthew Skinner - Initial contribution
+ */
+
+public enum RequestType {
+    COMMAND(false, 10000), // Something the user asked for, never dropped.
+    SNAPSHOT(true, 5000),
+    ALARM_POLL(true, 5000),
+    SETTINGS(true, 10000); // The lowPriorityRequests that keep the controls in sync with the camera.
+
+    private final boolean dropWhenStale;
+    private final int deadlineMs;
+
+    private RequestType(boolean dropWhenStale, int deadlineMs) {
+        this.dropWhenStale = dropWhenStale;
+        this.deadlineMs = deadlineMs;
+    }
+
+    // How long the camera gets to finish its reply once the request is sent, before the channel is closed.
+    public int getDeadlineMs() {
+        return deadlineMs;
+    }
+
+    // Polls are asked for again on the next poll, so there is no point sending one that has waited longer than that.
+    public boolean isDroppedWhenStale() {
+        return dropWhenStale;
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright (c) 2010-2019 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.openhab.binding.ipcamera.internal;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.Unpooled;
+
+/**
+ * The {@link ScaledMjpegVariant} makes a smaller copy of the MJPEG stream for every viewer that asked for the same
+ * width, so the JPEG is decoded, scaled and encoded once per frame no matter how many viewers share it. Only one
+ * frame is scaled at a time, frames that arrive while the last is still being worked on are skipped.
+ *
+ * @author Matthew Skinner - Initial contribution
+ */
+
+public class ScaledMjpegVariant {
+    public static final int MIN_WIDTH = 32;
+    private static final float JPEG_QUALITY = 0.75f;
+
+    private final int width;
+    private final AtomicBoolean busy = new AtomicBoolean();
+    private final AtomicLong framesScaled = new AtomicLong();
+
+    public ScaledMjpegVariant(int width) {
+        this.width = Math.max(MIN_WIDTH, width);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public long getFramesScaled() {
+        return framesScaled.get();
+    }
+
+    // Returns false if a frame is still being scaled, finish() must be called after each true.
+    public boolean tryStart() {
+        return busy.compareAndSet(false, true);
+    }
+
+    public void finish() {
+        busy.set(false);
+    }
+
+    // Slow, keep this off the netty threads. A source that is not wider than the width is returned retained as is.
+    public JpegFrame scale(JpegFrame source) throws IOException {
+        BufferedImage image;
+        ImageReader reader = null;
+        try (ImageInputStream input = ImageIO
+                .createImageInputStream(new ByteBufInputStream(source.content().duplicate()))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                throw new IOException("The MJPEG frame could not be read as a JPEG");
+            }
+            reader = readers.next();
+            reader.setInput(input, true, true);
+            int sourceWidth = reader.getWidth(0);
+            if (sourceWidth <= width) {
+                return source.retain();
+            }
+            // Skipping whole pixels while decoding is far cheaper than scaling all of them afterwards.
+            ImageReadParam param = reader.getDefaultReadParam();
+            int subsampling = Math.max(1, sourceWidth / width);
+            param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+            image = reader.read(0, param);
+        } finally {
+            if (reader != null) {
+                reader.dispose();
+            }
+        }
+
+        int height = Math.max(1, image.getHeight() * width / image.getWidth());
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = scaled.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream(width * height / 4);
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        try (ImageOutputStream output = ImageIO.createImageOutputStream(jpeg)) {
+            writer.setOutput(output);
+            ImageWriteParam writeParam = writer.getDefaultWriteParam();
+            writeParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            writeParam.setCompressionQuality(JPEG_QUALITY);
+            writer.write(null, new IIOImage(scaled, null, null), writeParam);
+        } finally {
+            writer.dispose();
+        }
+        framesScaled.incrementAndGet();
+        return new JpegFrame(Unpooled.wrappedBuffer(jpeg.toByteArray()), source.getVersion(), 0,
+                source.getCaptureTime());
+    }
+}
@@ -0,0 +1,141 @@
+/**
+ * Copyright (c) 2010-2019 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.openhab.binding.ipcamera.internal;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.timeout.IdleStateHandler;
+
+/**
+ * The {@link SharedStreamServer} is the one HTTP server for all cameras, set up with the binding's SERVER_PORT. Each
+ * request is sent to its camera by the first part of the path, ie /frontDoor/ipcamera.mjpeg, see {@link StreamRouter},
+ * so adding cameras does not add ports or server threads. It also works out the openHAB server's IP once for all
+ * cameras, as doing so can block on DNS.
+ *
+ * @author Matthew Skinner - Initial contribution
+ */
+
+public class SharedStreamServer {
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final EventLoopGroup eventLoopGroup;
+    private final CameraRegistry cameraRegistry;
+    private volatile String hostIp = null;
+    private volatile int port = -1;
+    private Channel serverChannel = null;
+
+    public SharedStreamServer(EventLoopGroup eventLoopGroup, CameraRegistry cameraRegistry) {
+        this.eventLoopGroup = eventLoopGroup;
+        this.cameraRegistry = cameraRegistry;
+    }
+
+    // Blocks the first time while DNS is asked, so call it from the scheduler and not a netty thread.
+    public String getHostIp() {
+        String ip = hostIp;
+        if (ip == null) {
+            synchronized (this) {
+                if (hostIp == null) {
+                    hostIp = findHostIp();
+                }
+                ip = hostIp;
+            }
+        }
+        return ip;
+    }
+
+    private String findHostIp() {
+        // IP "0.0.0.0" will bind the server to all network connections.
+        String ip = "0.0.0.0";
+        try {
+            InetAddress inet = InetAddress.getLocalHost();
+            for (InetAddress address : InetAddress.getAllByName(inet.getCanonicalHostName())) {
+                if (address.isSiteLocalAddress()) {
+                    ip = address.getHostAddress();
+                }
+            }
+        } catch (UnknownHostException e) {
+            logger.error("Stream Server has an error finding an IP:{}", e.getMessage());
+        }
+        logger.debug("Stream Server is serving on IP:{}", ip);
+        return ip;
+    }
+
+    // -1 when the shared server is turned off.
+    public int getPort() {
+        return port;
+    }
+
+    // Where the files of one camera can be found, ie http://192.168.1.2:54321/frontDoor
+    public String getCameraUrl(String thingId) {
+        return "http://" + getHostIp() + ":" + port + "/" + thingId;
+    }
+
+    // Nothing is done if the server is already on this port, a port of 0 or below stops it.
+    public synchronized void start(int newPort) {
+        if (newPort == port && serverChannel != null) {
+            return;
+        }
+        stop();
+        if (newPort <= 0) {
+            return;
+        }
+        try {
+            ServerBootstrap serverBootstrap = new ServerBootstrap();
+            serverBootstrap.group(eventLoopGroup);
+            serverBootstrap.channel(NioServerSocketChannel.class);
+            // An MJPEG viewer above the high mark skips frames until it is back below the low mark.
+            serverBootstrap.childOption(ChannelOption.WRITE_BUFFER_WATER_MARK,
+                    new WriteBufferWaterMark(512 * 1024, 2 * 1024 * 1024));
+            serverBootstrap.localAddress(new InetSocketAddress(getHostIp(), newPort));
+            serverBootstrap.childHandler(new ChannelInitializer<SocketChannel>() {
+                @Override
+                protected void initChannel(SocketChannel socketChannel) throws Exception {
+                    // Only addresses no camera allows are refused here, the camera's own list is checked once routed.
+                    socketChannel.pipeline().addLast("ipWhitelist",
+                            new IpWhitelistFilter(cameraRegistry::isIpAllowedByAny));
+                    socketChannel.pipeline().addLast("idleStateHandler", new IdleStateHandler(0, 10, 0));
+                    socketChannel.pipeline().addLast("HttpServerCodec", new HttpServerCodec());
+                    socketChannel.pipeline().addLast("streamRouter", new StreamRouter(cameraRegistry));
+                }
+            });
+            serverChannel = serverBootstrap.bind().sync().channel();
+            port = newPort;
+            logger.info("IpCamera stream server for all cameras has started on port {}", port);
+        } catch (Exception e) {
+            logger.error("Exception occured starting the shared streaming server on port {}:{}", newPort,
+                    e.getMessage());
+        }
+    }
+
+    public synchronized void stop() {
+        port = -1;
+        if (serverChannel != null) {
+            serverChannel.close();
+            serverChannel = null;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright (c) 2010-2019 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.openhab.binding.ipcamera.internal;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openhab.binding.ipcamera.handler.IpCameraHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * The {@link StreamRouter} sends each request that comes into the {@link SharedStreamServer} to the camera named by
+ * the first part of its path. /frontDoor/ipcamera.mjpeg is handed on as /ipcamera.mjpeg to a
+ * {@link StreamServerHandler} for the thing with the ID frontDoor, exactly as if it came in on that camera's own
+ * port. A /mosaic.mjpeg shows many cameras so it has no camera in its path, it is started here from the
+ * {@link CameraRegistry}. Unknown cameras get a 404.
+ *
+ * @author Matthew Skinner - Initial contribution
+ */
+
+public class StreamRouter extends ChannelInboundHandlerAdapter {
+    // Compiled once, the thing ID followed by the file and any query string.
+    private static final Pattern CAMERA_PATH = Pattern.compile("^/([A-Za-z0-9_-]+)(/[^/?]*(\\?.*)?)$");
+    private static final String STREAM_SERVER_HANDLER = "streamServerHandler";
+    private static final String MOSAIC_PATH = "/mosaic.mjpeg";
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final CameraRegistry cameraRegistry;
+    // The camera the last request went to, a keep-alive connection only changes handler when the camera changes.
+    private IpCameraHandler camera = null;
+    private MjpegMosaic mosaic = null;
+
+    public StreamRouter(CameraRegistry cameraRegistry) {
+        this.cameraRegistry = cameraRegistry;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof HttpRequest) {
+            HttpRequest httpRequest = (HttpRequest) msg;
+            String uri = httpRequest.uri();
+            if (MOSAIC_PATH.equals(new QueryStringDecoder(uri).path())) {
+                forgetCamera(ctx);
+                ReferenceCountUtil.release(msg);
+                startMosaic(ctx, uri);
+                return;
+            }
+            Matcher matcher = CAMERA_PATH.matcher(uri);
+            IpCameraHandler handler = matcher.matches() ? cameraRegistry.getCamera(matcher.group(1)) : null;
+            if (handler == null) {
+                logger.debug("Stream server has no camera for the request {}", uri);
+                // The rest of this request must not go on to the camera the last request went to.
+                forgetCamera(ctx);
+                ReferenceCountUtil.release(msg);
+                HttpResponse notFound = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+                        HttpResponseStatus.NOT_FOUND);
+                notFound.headers().add(HttpHeaderNames.CONTENT_LENGTH, 0);
+                ctx.channel().writeAndFlush(notFound);
+                return;
+            }
+            httpRequest.setUri(matcher.group(2));
+            if (handler != camera) {
+                // Removing the old handler lets it stop any stream it was sending.
+                if (camera != null) {
+                    ctx.pipeline().remove(STREAM_SERVER_HANDLER);
+                }
+                ctx.pipeline().addLast(STREAM_SERVER_HANDLER, new StreamServerHandler(handler));
+                camera = handler;
+            }
+        } else if (camera == null) {
+            ReferenceCountUtil.release(msg);
+            return;
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    private void forgetCamera(ChannelHandlerContext ctx) {
+        if (camera != null) {
+            ctx.pipeline().remove(STREAM_SERVER_HANDLER);
+            camera = null;
+        }
+    }
+
+    private void startMosaic(ChannelHandlerContext ctx, String uri) {
+        if (mosaic != null) {
+            cameraRegistry.leaveMosaic(mosaic, ctx.channel());
+        }
+        mosaic = cameraRegistry.joinMosaic(uri, ctx.channel());
+        if (mosaic == null) {
+            HttpResponse badRequest = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+                    HttpResponseStatus.BAD_REQUEST);
+            badRequest.headers().add(HttpHeaderNames.CONTENT_LENGTH, 0);
+            ctx.channel().writeAndFlush(badRequest);
+        }
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        if (mosaic != null) {
+            cameraRegistry.leaveMosaic(mosaic, ctx.channel());
+            mosaic = null;
+        }
+    }
+}
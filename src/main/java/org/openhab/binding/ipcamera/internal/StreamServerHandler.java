@@ -15,18 +15,25 @@ package org.openhab.binding.ipcamera.internal;
 
 import static org.openhab.binding.ipcamera.IpCameraBindingConstants.*;
 
-import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.openhab.binding.ipcamera.handler.IpCameraHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.handler.codec.DateFormatter;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
 import io.netty.handler.codec.http.DefaultHttpResponse;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.HttpHeaderValues;
@@ -34,15 +41,22 @@ import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import io.netty.handler.codec.http.HttpVersion;
-import io.netty.handler.stream.ChunkedFile;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http.QueryStringDecoder;
 import io.netty.handler.timeout.IdleState;
 import io.netty.handler.timeout.IdleStateEvent;
 import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.ScheduledFuture;
 
 public class StreamServerHandler extends ChannelInboundHandlerAdapter {
+    // What to send back as ?wait=<version> to get the picture after this one.
+    private static final String SNAPSHOT_VERSION_HEADER = "X-Snapshot-Version";
+    // Answered with the current picture before the 10 second idle timeout closes the connection.
+    private static final int MAX_WAIT_MS = 8000;
     private final Logger logger = LoggerFactory.getLogger(getClass());
     private IpCameraHandler ipCameraHandler;
     private boolean handlingMjpeg = false;
+    private MjpegMosaic mosaic = null;
 
     public StreamServerHandler(IpCameraHandler ipCameraHandler) {
         this.ipCameraHandler = ipCameraHandler;
@@ -59,36 +73,52 @@ public class StreamServerHandler extends ChannelInboundHandlerAdapter {
                 HttpRequest httpRequest = (HttpRequest) msg;
                 // logger.info("{}", msg);
                 logger.debug("Stream Server recieved request \t{}:{}", httpRequest.method(), httpRequest.uri());
-                String requestIP = "("
-                        + ((InetSocketAddress) ctx.channel().remoteAddress()).getAddress().getHostAddress() + ")";
+                InetAddress requestIP = ((InetSocketAddress) ctx.channel().remoteAddress()).getAddress();
 
-                if (!ipCameraHandler.config.get(CONFIG_IP_WHITELIST).toString().contains(requestIP)
-                        && !ipCameraHandler.config.get(CONFIG_IP_WHITELIST).toString().contentEquals("DISABLE")) {
-                    logger.warn("The request made from {} was not in the whitelist and will be ignored.", requestIP);
+                // The connection was already let in by the server, this is for the camera the request was sent to.
+                if (!ipCameraHandler.isIpAllowed(requestIP)) {
+                    logger.warn("The request made from ({}) was not in the whitelist and will be refused.",
+                            requestIP.getHostAddress());
+                    HttpResponse forbidden = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+                            HttpResponseStatus.FORBIDDEN);
+                    forbidden.headers().add(HttpHeaderNames.CONTENT_LENGTH, 0);
+                    forbidden.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+                    ctx.channel().writeAndFlush(forbidden).addListener(ChannelFutureListener.CLOSE);
                     return;
                 } else if ("GET".equalsIgnoreCase(httpRequest.method().toString())) {
-                    if (httpRequest.uri().contains("/ipcamera.mjpeg")) {
-                        if (ipCameraHandler.mjpegUri != null) {
+                    if (httpRequest.uri().contains("/mosaic.mjpeg")) {
+                        startMosaic(ctx, httpRequest.uri());
+                    } else if (httpRequest.uri().contains("/ipcamera.mjpeg")) {
+                        if (ipCameraHandler.canStreamMjpeg()) {
+                            // ?fps= and ?width= let small dashboard tiles ask for less than the camera sends.
+                            ctx.channel().attr(MjpegViewer.VIEWER).set(new MjpegViewer(ctx.channel(),
+                                    getIntParameter(httpRequest.uri(), "fps"),
+                                    getIntParameter(httpRequest.uri(), "width")));
                             ipCameraHandler.setupMjpegStreaming(true, ctx);
                             handlingMjpeg = true;
                         } else {
                             logger.error(
-                                    "MJPEG stream was told to start and there is no STREAM_URL_OVERRIDE supplied.");
+                                    "MJPEG stream was told to start and there is no STREAM_URL_OVERRIDE or snapshot URL to make one from.");
                         }
                     } else if (httpRequest.uri().contains("/ipcamera.m3u8")) {
                         ipCameraHandler.setupFfmpegFormat("HLS");
                         ipCameraHandler.ffmpegHLS.setKeepAlive();// setup must come first
-                        sendFile(ctx, httpRequest.uri(), "application/x-mpegURL");
+                        sendFile(ctx, httpRequest, "application/x-mpegURL");
                     } else if (httpRequest.uri().contains(".ts")) {
-                        sendFile(ctx, httpRequest.uri(), "video/MP2T");
+                        sendFile(ctx, httpRequest, "video/MP2T");
                     } else if (httpRequest.uri().contains("/ipcamera.gif")) {
-                        sendFile(ctx, httpRequest.uri(), "image/gif");
+                        sendFile(ctx, httpRequest, "image/gif");
                     } else if (httpRequest.uri().contains(".jpg")) {
                         if (httpRequest.uri().contains("ipcamera.jpg")) {
-                            sendSnapshotImage(ctx, "image/jpeg");
+                            long haveVersion = getWaitVersion(httpRequest.uri());
+                            if (haveVersion >= 0) {
+                                new SnapshotWaiter(ctx, httpRequest).waitForNewerThan(haveVersion);
+                            } else {
+                                sendSnapshotImage(ctx, httpRequest, "image/jpeg");
+                            }
                         } else {
                             // Allow access to the preroll and postroll jpg files
-                            sendFile(ctx, httpRequest.uri(), "image/jpeg");
+                            sendFile(ctx, httpRequest, "image/jpeg");
                         }
                     } else if (httpRequest.uri().contains("/instar")) {
                         InstarHandler instar = new InstarHandler(ipCameraHandler);
@@ -101,32 +131,269 @@ public class StreamServerHandler extends ChannelInboundHandlerAdapter {
         }
     }
 
-    private void sendSnapshotImage(ChannelHandlerContext ctx, String contentType) throws IOException {
-        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
-        response.headers().add(HttpHeaderNames.CONTENT_TYPE, contentType);
-        response.headers().set(HttpHeaderNames.CACHE_CONTROL, HttpHeaderValues.NO_CACHE);
-        response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
-        response.headers().add("Access-Control-Allow-Origin", "*");
-        response.headers().add("Access-Control-Expose-Headers", "content-length");
+    // The version from ?wait=<version>, or -1 when the request should be answered straight away.
+    private long getWaitVersion(String uri) {
+        List<String> wait = new QueryStringDecoder(uri).parameters().get("wait");
+        if (wait == null || wait.isEmpty()) {
+            return -1;
+        }
+        try {
+            return Math.max(0, Long.parseLong(wait.get(0)));
+        } catch (NumberFormatException e) {
+            logger.debug("Ignoring the wait parameter as {} is not a snapshot version.", wait.get(0));
+            return -1;
+        }
+    }
 
-        ByteBuf bbuf = Unpooled.copiedBuffer(ipCameraHandler.currentSnapshot);
-        response.headers().add(HttpHeaderNames.CONTENT_LENGTH, bbuf.readableBytes());
-        ctx.channel().write(response);
-        ctx.channel().writeAndFlush(bbuf);
+    private void startMosaic(ChannelHandlerContext ctx, String uri) {
+        mosaic = ipCameraHandler.getCameraRegistry().joinMosaic(uri, ctx.channel());
+        if (mosaic == null) {
+            sendEmptyResponse(ctx, HttpResponseStatus.BAD_REQUEST, null);
+        }
+    }
+
+    // 0 when the parameter is missing or not a positive number.
+    private int getIntParameter(String uri, String name) {
+        List<String> values = new QueryStringDecoder(uri).parameters().get(name);
+        if (values == null || values.isEmpty()) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Integer.parseInt(values.get(0)));
+        } catch (NumberFormatException e) {
+            logger.debug("Ignoring {}={} as it is not a number.", name, values.get(0));
+            return 0;
+        }
+    }
+
+    private void sendSnapshotImage(ChannelHandlerContext ctx, HttpRequest httpRequest, String contentType) {
+        JpegFrame frame = ipCameraHandler.retainSnapshot();
+        if (frame == null) {
+            logger.debug("No snapshot has been received from the camera yet.");
+            HttpResponse unavailable = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+                    HttpResponseStatus.SERVICE_UNAVAILABLE);
+            unavailable.headers().add(HttpHeaderNames.CONTENT_LENGTH, 0);
+            ctx.channel().writeAndFlush(unavailable);
+            return;
+        }
+        try {
+            String lastModified = DateFormatter.format(new Date(frame.getCaptureTime()));
+            if (isNotModified(httpRequest, frame)) {
+                HttpResponse notModified = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+                        HttpResponseStatus.NOT_MODIFIED);
+                notModified.headers().set(HttpHeaderNames.ETAG, frame.getETag());
+                notModified.headers().set(SNAPSHOT_VERSION_HEADER, frame.getVersion());
+                notModified.headers().set(HttpHeaderNames.LAST_MODIFIED, lastModified);
+                notModified.headers().set(HttpHeaderNames.CACHE_CONTROL, HttpHeaderValues.NO_CACHE);
+                notModified.headers().add("Access-Control-Allow-Origin", "*");
+                ctx.channel().writeAndFlush(notModified);
+                return;
+            }
+            HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+            response.headers().add(HttpHeaderNames.CONTENT_TYPE, contentType);
+            // no-cache still lets the browser keep the picture, it just has to ask with the ETag if it is current.
+            response.headers().set(HttpHeaderNames.CACHE_CONTROL, HttpHeaderValues.NO_CACHE);
+            response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+            response.headers().set(HttpHeaderNames.ETAG, frame.getETag());
+            response.headers().set(SNAPSHOT_VERSION_HEADER, frame.getVersion());
+            response.headers().set(HttpHeaderNames.LAST_MODIFIED, lastModified);
+            response.headers().add("Access-Control-Allow-Origin", "*");
+            response.headers().add("Access-Control-Expose-Headers",
+                    "content-length, etag, last-modified, " + SNAPSHOT_VERSION_HEADER);
+            response.headers().add(HttpHeaderNames.CONTENT_LENGTH, frame.length());
+            ctx.channel().write(response);
+            ctx.channel().writeAndFlush(frame.content().retainedDuplicate());
+        } finally {
+            frame.release();
+        }
+    }
+
+    // If-None-Match wins over If-Modified-Since when both are sent, as the date only has 1 second accuracy.
+    private boolean isNotModified(HttpRequest httpRequest, JpegFrame frame) {
+        String ifNoneMatch = httpRequest.headers().get(HttpHeaderNames.IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            String eTag = frame.getETag();
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals(eTag) || tag.equals("*")) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        String ifModifiedSince = httpRequest.headers().get(HttpHeaderNames.IF_MODIFIED_SINCE);
+        if (ifModifiedSince != null) {
+            Date since = DateFormatter.parseHttpDate(ifModifiedSince);
+            return since != null && frame.getCaptureTime() / 1000 <= since.getTime() / 1000;
+        }
+        return false;
     }
 
-    private void sendFile(ChannelHandlerContext ctx, String fileUri, String contentType) throws IOException {
-        File file = new File(ipCameraHandler.config.get(CONFIG_FFMPEG_OUTPUT).toString() + fileUri);
-        ChunkedFile chunkedFile = new ChunkedFile(file);
-        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+    // Holds a ?wait=<version> request on its channel's event loop until a newer picture is published, the timeout
+    // fires or the client goes away, whichever comes first. No thread is blocked while it waits.
+    private class SnapshotWaiter implements Runnable {
+        private final ChannelHandlerContext ctx;
+        private final HttpRequest httpRequest;
+        private final AtomicBoolean finished = new AtomicBoolean();
+        private volatile ScheduledFuture<?> timeout = null;
+        // Removed again once the wait is over, a long-polling client may send many waits on one connection.
+        private final ChannelFutureListener closeListener = future -> finish();
+
+        SnapshotWaiter(ChannelHandlerContext ctx, HttpRequest httpRequest) {
+            this.ctx = ctx;
+            this.httpRequest = httpRequest;
+        }
+
+        void waitForNewerThan(long haveVersion) {
+            // Added before the version is checked, so a picture published in between is not missed.
+            ipCameraHandler.addSnapshotWaiter(this);
+            if (ipCameraHandler.getSnapshotVersion() > haveVersion) {
+                run();
+                return;
+            }
+            timeout = ctx.executor().schedule(this, MAX_WAIT_MS, TimeUnit.MILLISECONDS);
+            ctx.channel().closeFuture().addListener(closeListener);
+            if (finished.get()) {
+                // A picture came in before the listener was added, so finish() could not remove it.
+                ctx.channel().closeFuture().removeListener(closeListener);
+            }
+        }
+
+        @Override
+        public void run() {
+            if (finish()) {
+                ctx.executor().execute(() -> sendSnapshotImage(ctx, httpRequest, "image/jpeg"));
+            }
+        }
+
+        private boolean finish() {
+            if (!finished.compareAndSet(false, true)) {
+                return false;
+            }
+            ipCameraHandler.removeSnapshotWaiter(this);
+            ctx.channel().closeFuture().removeListener(closeListener);
+            ScheduledFuture<?> pending = timeout;
+            if (pending != null) {
+                pending.cancel(false);
+            }
+            return true;
+        }
+    }
+
+    // The file is sent by the kernel straight from the page cache with sendfile, it never passes through the heap.
+    private void sendFile(ChannelHandlerContext ctx, HttpRequest httpRequest, String contentType) {
+        String path = new QueryStringDecoder(httpRequest.uri()).path();
+        RandomAccessFile file = null;
+        long length = 0;
+        if (!path.contains("..")) {
+            try {
+                file = new RandomAccessFile(ipCameraHandler.config.get(CONFIG_FFMPEG_OUTPUT).toString() + path, "r");
+                length = file.length();
+            } catch (IOException e) {
+                // Not an error, ffmpeg may not have made the file yet or has already deleted it.
+                closeQuietly(file);
+                file = null;
+            }
+        }
+        if (file == null) {
+            logger.debug("Stream server could not find the file {}", path);
+            sendEmptyResponse(ctx, HttpResponseStatus.NOT_FOUND, null);
+            return;
+        }
+
+        long start = 0;
+        long end = length - 1;
+        HttpResponseStatus status = HttpResponseStatus.OK;
+        String range = httpRequest.headers().get(HttpHeaderNames.RANGE);
+        if (range != null) {
+            long[] byteRange = parseRange(range, length);
+            if (byteRange == null) {
+                closeQuietly(file);
+                sendEmptyResponse(ctx, HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE, "bytes */" + length);
+                return;
+            }
+            if (byteRange.length == 2) {
+                start = byteRange[0];
+                end = byteRange[1];
+                status = HttpResponseStatus.PARTIAL_CONTENT;
+            }
+        }
+
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, status);
         response.headers().add(HttpHeaderNames.CONTENT_TYPE, contentType);
         response.headers().set(HttpHeaderNames.CACHE_CONTROL, HttpHeaderValues.NO_CACHE);
         response.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
-        response.headers().add(HttpHeaderNames.CONTENT_LENGTH, chunkedFile.length());
+        response.headers().set(HttpHeaderNames.ACCEPT_RANGES, HttpHeaderValues.BYTES);
+        response.headers().add(HttpHeaderNames.CONTENT_LENGTH, end - start + 1);
+        if (status == HttpResponseStatus.PARTIAL_CONTENT) {
+            response.headers().set(HttpHeaderNames.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length);
+        }
         response.headers().add("Access-Control-Allow-Origin", "*");
-        response.headers().add("Access-Control-Expose-Headers", "content-length");
+        response.headers().add("Access-Control-Expose-Headers", "content-length, content-range, accept-ranges");
         ctx.channel().write(response);
-        ctx.channel().writeAndFlush(chunkedFile);
+        // The region closes the file once it has been sent, or if the connection is closed first.
+        ctx.channel().write(new DefaultFileRegion(file.getChannel(), start, end - start + 1));
+        ctx.channel().writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+    }
+
+    // Returns {start, end} for a single range, an empty array to send the whole file as for a multi range request,
+    // or null if the range can not be satisfied.
+    private static long[] parseRange(String range, long length) {
+        range = range.trim();
+        if (!range.startsWith("bytes=") || range.contains(",")) {
+            return new long[0];
+        }
+        int dash = range.indexOf('-');
+        if (dash < 0) {
+            return new long[0];
+        }
+        try {
+            String first = range.substring(6, dash).trim();
+            String last = range.substring(dash + 1).trim();
+            long start;
+            long end;
+            if (first.isEmpty()) {
+                // bytes=-500 is the last 500 bytes.
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0) {
+                    return null;
+                }
+                start = Math.max(0, length - suffix);
+                end = length - 1;
+            } else {
+                start = Long.parseLong(first);
+                end = last.isEmpty() ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+            }
+            if (start >= length || start > end) {
+                return null;
+            }
+            return new long[] { start, end };
+        } catch (NumberFormatException e) {
+            return new long[0];
+        }
+    }
+
+    private void sendEmptyResponse(ChannelHandlerContext ctx, HttpResponseStatus status, String contentRange) {
+        HttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status);
+        response.headers().add(HttpHeaderNames.CONTENT_LENGTH, 0);
+        if (contentRange != null) {
+            response.headers().set(HttpHeaderNames.CONTENT_RANGE, contentRange);
+        }
+        response.headers().add("Access-Control-Allow-Origin", "*");
+        ctx.channel().writeAndFlush(response);
+    }
+
+    private void closeQuietly(RandomAccessFile file) {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                logger.debug("Could not close a file the stream server opened: {}", e.getMessage());
+            }
+        }
     }
 
     @Override
@@ -141,9 +408,6 @@ public class StreamServerHandler extends ChannelInboundHandlerAdapter {
             logger.debug("An established connection was aborted by the software");
         } else if (cause.toString().contains("An existing connection was forcibly closed by the remote host")) {
             logger.debug("An existing connection was forcibly closed by the remote host");
-        } else if (cause.toString().contains("(No such file or directory)")) {
-            logger.info(
-                    "IpCameras file server could not find the requested file. This may happen if ffmpeg is still creating the file.");
         } else {
             logger.warn("Exception caught from stream server:{}", cause);
         }
@@ -167,5 +431,9 @@ public class StreamServerHandler extends ChannelInboundHandlerAdapter {
         if (handlingMjpeg) {
             ipCameraHandler.setupMjpegStreaming(false, ctx);
         }
+        if (mosaic != null) {
+            ipCameraHandler.getCameraRegistry().leaveMosaic(mosaic, ctx.channel());
+            mosaic = null;
+        }
     }
 }
@@ -0,0 +1,80 @@
+/**
+ * Copyright (c) 2010-2019 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.openhab.binding.ipcamera.internal;
+
+/**
+ * The {@link XxHash32} is the 32 bit xxHash of a byte array. It is not a secure hash, it is used to tell quickly if
+ * a JPEG is the same as the last one, at several GB per second.
+ *
+ * @author Matthew Skinner - Initial contribution
+ */
+
+public class XxHash32 {
+    private static final int PRIME1 = 0x9E3779B1;
+    private static final int PRIME2 = 0x85EBCA77;
+    private static final int PRIME3 = 0xC2B2AE3D;
+    private static final int PRIME4 = 0x27D4EB2F;
+    private static final int PRIME5 = 0x165667B1;
+
+    private XxHash32() {
+    }
+
+    public static int hash(byte[] data, int offset, int length, int seed) {
+        int end = offset + length;
+        int i = offset;
+        int hash;
+        if (length >= 16) {
+            int v1 = seed + PRIME1 + PRIME2;
+            int v2 = seed + PRIME2;
+            int v3 = seed;
+            int v4 = seed - PRIME1;
+            int limit = end - 16;
+            do {
+                v1 = round(v1, readInt(data, i));
+                v2 = round(v2, readInt(data, i + 4));
+                v3 = round(v3, readInt(data, i + 8));
+                v4 = round(v4, readInt(data, i + 12));
+                i += 16;
+            } while (i <= limit);
+            hash = Integer.rotateLeft(v1, 1) + Integer.rotateLeft(v2, 7) + Integer.rotateLeft(v3, 12)
+                    + Integer.rotateLeft(v4, 18);
+        } else {
+            hash = seed + PRIME5;
+        }
+        hash += length;
+        while (i <= end - 4) {
+            hash = Integer.rotateLeft(hash + readInt(data, i) * PRIME3, 17) * PRIME4;
+            i += 4;
+        }
+        while (i < end) {
+            hash = Integer.rotateLeft(hash + (data[i] & 0xFF) * PRIME5, 11) * PRIME1;
+            i++;
+        }
+        hash ^= hash >>> 15;
+        hash *= PRIME2;
+        hash ^= hash >>> 13;
+        hash *= PRIME3;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+    private static int round(int acc, int input) {
+        return Integer.rotateLeft(acc + input * PRIME2, 13) * PRIME1;
+    }
+
+    // xxHash reads little endian.
+    private static int readInt(byte[] data, int i) {
+        return (data[i] & 0xFF) | (data[i + 1] & 0xFF) << 8 | (data[i + 2] & 0xFF) << 16 | (data[i + 3] & 0xFF) << 24;
+    }
+}
@@ -0,0 +1,268 @@
+/**
+ * Copyright (c) 2010-2019 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.openhab.binding.ipcamera.internal;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Test;
+
+import io.netty.channel.Channel;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+/**
+ * The {@link CameraConnectionPoolTest} uses {@link EmbeddedChannel}s as the connections to a camera. They have no
+ * remote port, so the pool keeps them all under the same port of -1.
+ *
+ * @author Matthew Skinner - Initial contribution
+ */
+
+public class CameraConnectionPoolTest {
+    private static final int PORT = -1;
+
+    private final List<EmbeddedChannel> channels = new ArrayList<>();
+
+    @After
+    public void closeChannels() {
+        for (EmbeddedChannel channel : channels) {
+            channel.finishAndReleaseAll();
+        }
+    }
+
+    // Connects a channel the way IpCameraHandler does, with a reservation first.
+    private EmbeddedChannel connect(CameraConnectionPool pool) {
+        assertTrue(pool.reserve());
+        EmbeddedChannel channel = new EmbeddedChannel();
+        channels.add(channel);
+        pool.add(channel);
+        return channel;
+    }
+
+    @Test
+    public void releasedChannelIsHandedOutAgain() {
+        CameraConnectionPool pool = new CameraConnectionPool(2);
+        assertNull(pool.acquire(PORT));
+        EmbeddedChannel channel = connect(pool);
+        pool.release(channel);
+
+        assertSame(channel, pool.acquire(PORT));
+        assertNull(pool.acquire(PORT));
+        assertEquals(1, pool.getOpenConnections());
+        assertEquals(1, pool.getHits());
+        assertEquals(2, pool.getMisses());
+    }
+
+    @Test
+    public void mostRecentlyReleasedChannelIsUsedFirst() {
+        CameraConnectionPool pool = new CameraConnectionPool(2);
+        EmbeddedChannel older = connect(pool);
+        EmbeddedChannel newer = connect(pool);
+        pool.release(older);
+        pool.release(newer);
+
+        assertSame(newer, pool.acquire(PORT));
+        assertSame(older, pool.acquire(PORT));
+    }
+
+    @Test
+    public void closedIdleChannelIsNotHandedOut() {
+        CameraConnectionPool pool = new CameraConnectionPool(2);
+        EmbeddedChannel channel = connect(pool);
+        pool.release(channel);
+        channel.close();
+
+        assertNull(pool.acquire(PORT));
+        assertEquals(0, pool.getOpenConnections());
+    }
+
+    @Test
+    public void reserveStopsAtTheCap() {
+        CameraConnectionPool pool = new CameraConnectionPool(2);
+        connect(pool);
+        connect(pool);
+
+        assertFalse(pool.reserve());
+        assertEquals(2, pool.getOpenConnections());
+    }
+
+    @Test
+    public void reserveAtTheCapClosesTheOldestIdleChannel() {
+        CameraConnectionPool pool = new CameraConnectionPool(2);
+        EmbeddedChannel idle = connect(pool);
+        connect(pool);
+        pool.release(idle);
+
+        assertFalse(pool.reserve());
+        assertFalse(idle.isOpen());
+        // Its slot is free once it has closed.
+        assertEquals(1, pool.getOpenConnections());
+        assertTrue(pool.reserve());
+    }
+
+    @Test
+    public void cancelledReservationFreesItsSlot() {
+        CameraConnectionPool pool = new CameraConnectionPool(1);
+        assertTrue(pool.reserve());
+        assertFalse(pool.reserve());
+        pool.cancelReservation();
+
+        assertTrue(pool.reserve());
+    }
+
+    @Test
+    public void waitingRequestRunsWhenAChannelIsReleased() {
+        CameraConnectionPool pool = new CameraConnectionPool(1);
+        EmbeddedChannel channel = connect(pool);
+        List<Channel> acquired = new ArrayList<>();
+        pool.waitForConnection(RequestType.COMMAND, () -> acquired.add(pool.acquire(PORT)),
+                new CompletableFuture<String>());
+        assertTrue(acquired.isEmpty());
+        assertEquals(1, pool.getWaitingRequests());
+
+        // The request is run straight away on the thread that releases the channel.
+        pool.release(channel);
+        assertEquals(1, acquired.size());
+        assertSame(channel, acquired.get(0));
+        assertEquals(0, pool.getWaitingRequests());
+    }
+
+    @Test
+    public void waitingRequestRunsWhenAChannelCloses() {
+        CameraConnectionPool pool = new CameraConnectionPool(1);
+        EmbeddedChannel channel = connect(pool);
+        List<Boolean> reserved = new ArrayList<>();
+        pool.waitForConnection(RequestType.COMMAND, () -> reserved.add(pool.reserve()),
+                new CompletableFuture<String>());
+        channel.close();
+
+        assertEquals(1, reserved.size());
+        assertTrue(reserved.get(0));
+    }
+
+    @Test
+    public void waitingRequestsRunInPriorityOrder() {
+        CameraConnectionPool pool = new CameraConnectionPool(1);
+        EmbeddedChannel channel = connect(pool);
+        List<RequestType> order = new ArrayList<>();
+        for (RequestType type : new RequestType[] { RequestType.SETTINGS, RequestType.SNAPSHOT,
+                RequestType.COMMAND }) {
+            // Each request gives the channel straight back, so the next one in the queue runs.
+            pool.waitForConnection(type, () -> {
+                order.add(type);
+                Channel acquired = pool.acquire(PORT);
+                if (order.size() < 3) {
+                    pool.release(acquired);
+                }
+            }, new CompletableFuture<String>());
+        }
+        pool.release(channel);
+
+        assertEquals(3, order.size());
+        assertEquals(RequestType.COMMAND, order.get(0));
+        assertEquals(RequestType.SNAPSHOT, order.get(1));
+        assertEquals(RequestType.SETTINGS, order.get(2));
+    }
+
+    @Test
+    public void fullQueueDropsALowerPriorityRequest() throws InterruptedException {
+        CameraConnectionPool pool = new CameraConnectionPool(1);
+        connect(pool);
+        CompletableFuture<String> lowPriority = new CompletableFuture<>();
+        pool.waitForConnection(RequestType.SETTINGS, () -> fail("A dropped request must not run"), lowPriority);
+        for (int i = 1; i < CameraConnectionPool.MAX_WAITING_REQUESTS; i++) {
+            pool.waitForConnection(RequestType.COMMAND, () -> {
+            }, new CompletableFuture<String>());
+        }
+        assertEquals(CameraConnectionPool.MAX_WAITING_REQUESTS, pool.getWaitingRequests());
+        assertFalse(lowPriority.isDone());
+
+        pool.waitForConnection(RequestType.COMMAND, () -> {
+        }, new CompletableFuture<String>());
+        assertEquals(CameraConnectionPool.MAX_WAITING_REQUESTS, pool.getWaitingRequests());
+        assertEquals(1, pool.getDroppedRequests());
+        assertFailedWith(lowPriority, TimeoutException.class);
+    }
+
+    @Test
+    public void fullQueueRefusesARequestWithNothingLowerToDrop() throws InterruptedException {
+        CameraConnectionPool pool = new CameraConnectionPool(1);
+        connect(pool);
+        for (int i = 0; i < CameraConnectionPool.MAX_WAITING_REQUESTS; i++) {
+            pool.waitForConnection(RequestType.COMMAND, () -> {
+            }, new CompletableFuture<String>());
+        }
+        CompletableFuture<String> refused = new CompletableFuture<>();
+        pool.waitForConnection(RequestType.SETTINGS, () -> fail("A refused request must not run"), refused);
+
+        assertEquals(CameraConnectionPool.MAX_WAITING_REQUESTS, pool.getWaitingRequests());
+        assertFailedWith(refused, RejectedExecutionException.class);
+    }
+
+    @Test
+    public void detachedStreamNoLongerCountsTowardsTheCap() {
+        CameraConnectionPool pool = new CameraConnectionPool(1);
+        EmbeddedChannel stream = connect(pool);
+        pool.detach(stream);
+
+        assertEquals(0, pool.getOpenConnections());
+        assertTrue(pool.reserve());
+        // Closing the stream later must not free the slot a second time.
+        stream.close();
+        assertEquals(1, pool.getOpenConnections());
+    }
+
+    @Test
+    public void clearClosesIdleChannels() {
+        CameraConnectionPool pool = new CameraConnectionPool(2);
+        EmbeddedChannel idle = connect(pool);
+        EmbeddedChannel busy = connect(pool);
+        pool.release(idle);
+
+        pool.clear();
+        assertFalse(idle.isOpen());
+        assertTrue(busy.isOpen());
+        assertEquals(1, pool.getOpenConnections());
+        assertNull(pool.acquire(PORT));
+    }
+
+    @Test
+    public void clearFailsWaitingRequests() throws InterruptedException {
+        CameraConnectionPool pool = new CameraConnectionPool(1);
+        connect(pool);
+        CompletableFuture<String> waiting = new CompletableFuture<>();
+        pool.waitForConnection(RequestType.COMMAND, () -> fail("A cleared request must not run"), waiting);
+
+        pool.clear();
+        assertEquals(0, pool.getWaitingRequests());
+        assertFailedWith(waiting, TimeoutException.class);
+    }
+
+    private static void assertFailedWith(CompletableFuture<?> future, Class<? extends Throwable> cause)
+            throws InterruptedException {
+        assertTrue(future.isCompletedExceptionally());
+        try {
+            future.get();
+            fail("The future should have failed");
+        } catch (ExecutionException e) {
+            assertTrue(cause.isInstance(e.getCause()));
+        }
+    }
+}
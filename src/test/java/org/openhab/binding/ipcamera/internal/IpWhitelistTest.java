@@ -0,0 +1,153 @@
+/**
+ * Copyright (c) 2010-2019 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.openhab.binding.ipcamera.internal;
+
+import static org.junit.Assert.*;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import org.junit.Test;
+
+/**
+ * The {@link IpWhitelistTest} checks the addresses on either side of each range, as that is where the binary search
+ * in {@link IpWhitelist#isAllowed} can be off by one.
+ *
+ * @author Matthew Skinner - Initial contribution
+ */
+
+public class IpWhitelistTest {
+
+    private static void assertAllowed(IpWhitelist whitelist, String... addresses) throws UnknownHostException {
+        for (String address : addresses) {
+            assertTrue(address + " should be allowed", whitelist.isAllowed(InetAddress.getByName(address)));
+        }
+    }
+
+    private static void assertRefused(IpWhitelist whitelist, String... addresses) throws UnknownHostException {
+        for (String address : addresses) {
+            assertFalse(address + " should be refused", whitelist.isAllowed(InetAddress.getByName(address)));
+        }
+    }
+
+    @Test
+    public void disableAllowsEveryAddress() throws UnknownHostException {
+        assertTrue(IpWhitelist.parse("DISABLE").isAllowAll());
+        assertTrue(IpWhitelist.parse(null).isAllowAll());
+        assertAllowed(IpWhitelist.parse("DISABLE"), "8.8.8.8", "2001:db8::1");
+    }
+
+    @Test
+    public void singleAddress() throws UnknownHostException {
+        IpWhitelist whitelist = IpWhitelist.parse("(192.168.1.20)");
+        assertFalse(whitelist.isAllowAll());
+        assertAllowed(whitelist, "192.168.1.20");
+        assertRefused(whitelist, "192.168.1.19", "192.168.1.21");
+    }
+
+    @Test
+    public void subnetBoundaries() throws UnknownHostException {
+        IpWhitelist whitelist = IpWhitelist.parse("(192.168.2.0/24)");
+        assertAllowed(whitelist, "192.168.2.0", "192.168.2.1", "192.168.2.255");
+        assertRefused(whitelist, "192.168.1.255", "192.168.3.0");
+    }
+
+    @Test
+    public void hostBitsOfASubnetAreIgnored() throws UnknownHostException {
+        IpWhitelist whitelist = IpWhitelist.parse("(192.168.2.77/24)");
+        assertAllowed(whitelist, "192.168.2.0", "192.168.2.255");
+        assertRefused(whitelist, "192.168.3.0");
+    }
+
+    @Test
+    public void searchFindsTheRangeBeforeAnAddress() throws UnknownHostException {
+        // Given out of order, so they must be sorted before searching.
+        IpWhitelist whitelist = IpWhitelist.parse("(192.168.3.0/24)(10.0.0.5)(172.16.0.0/12)(192.168.1.20)");
+        assertAllowed(whitelist, "10.0.0.5", "172.16.0.0", "172.31.255.255", "192.168.1.20", "192.168.3.0",
+                "192.168.3.255");
+        // Below the first range, between ranges and above the last.
+        assertRefused(whitelist, "0.0.0.0", "10.0.0.4", "10.0.0.6", "172.15.255.255", "172.32.0.0", "192.168.1.19",
+                "192.168.2.255", "192.168.4.0", "255.255.255.255");
+    }
+
+    @Test
+    public void highestAddressesDoNotOverflow() throws UnknownHostException {
+        IpWhitelist whitelist = IpWhitelist.parse("(255.255.255.255)(128.0.0.0/1)");
+        assertAllowed(whitelist, "128.0.0.0", "200.1.2.3", "255.255.255.255");
+        assertRefused(whitelist, "127.255.255.255");
+    }
+
+    @Test
+    public void adjacentRangesAreJoined() throws UnknownHostException {
+        IpWhitelist whitelist = IpWhitelist.parse("(10.0.0.128/25)(10.0.0.0/25)");
+        assertAllowed(whitelist, "10.0.0.0", "10.0.0.127", "10.0.0.128", "10.0.0.255");
+        assertRefused(whitelist, "9.255.255.255", "10.0.1.0");
+    }
+
+    @Test
+    public void rangeInsideAnotherDoesNotShortenIt() throws UnknownHostException {
+        IpWhitelist whitelist = IpWhitelist.parse("(10.0.0.0/8)(10.1.0.0/16)(10.0.0.1)(11.0.0.1)");
+        assertAllowed(whitelist, "10.0.0.0", "10.1.255.255", "10.2.0.0", "10.255.255.255", "11.0.0.1");
+        assertRefused(whitelist, "11.0.0.0", "11.0.0.2");
+    }
+
+    @Test
+    public void overlappingRangesAreJoined() throws UnknownHostException {
+        IpWhitelist whitelist = IpWhitelist.parse("(10.0.0.0/23)(10.0.1.0/24)(10.0.1.128/25)(10.0.2.0/24)");
+        assertAllowed(whitelist, "10.0.0.0", "10.0.1.255", "10.0.2.0", "10.0.2.255");
+        assertRefused(whitelist, "10.0.3.0");
+    }
+
+    @Test
+    public void ipv6Subnet() throws UnknownHostException {
+        IpWhitelist whitelist = IpWhitelist.parse("(fd00::/8)(2001:db8::1)");
+        assertAllowed(whitelist, "fd00::", "fd12:3456::1", "fdff:ffff:ffff:ffff:ffff:ffff:ffff:ffff", "2001:db8::1");
+        assertRefused(whitelist, "fcff:ffff:ffff:ffff:ffff:ffff:ffff:ffff", "fe00::", "2001:db8::", "2001:db8::2",
+                "::1");
+    }
+
+    @Test
+    public void ipv4AndIpv6AreKeptApart() throws UnknownHostException {
+        IpWhitelist ipv4Only = IpWhitelist.parse("(0.0.0.0/0)");
+        assertAllowed(ipv4Only, "0.0.0.0", "127.0.0.1", "255.255.255.255");
+        assertRefused(ipv4Only, "::1", "fd00::1");
+
+        IpWhitelist ipv6Only = IpWhitelist.parse("(::/0)");
+        assertAllowed(ipv6Only, "::", "::1", "ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff");
+        assertRefused(ipv6Only, "127.0.0.1", "192.168.1.20");
+    }
+
+    @Test
+    public void ipv4MappedAddressIsCheckedAsIpv4() throws UnknownHostException {
+        IpWhitelist whitelist = IpWhitelist.parse("(192.168.1.20)");
+        assertAllowed(whitelist, "::ffff:192.168.1.20");
+        assertRefused(whitelist, "::ffff:192.168.1.21");
+    }
+
+    @Test
+    public void invalidEntriesAreIgnored() throws UnknownHostException {
+        IpWhitelist whitelist = IpWhitelist
+                .parse("(camera.local)(192.168.1.300)(10.0.0.0/33)(10.0.0.0/x)(10.0.0.0/-1)(fd00::/129)(192.168.1.20)");
+        assertFalse(whitelist.isAllowAll());
+        assertAllowed(whitelist, "192.168.1.20");
+        assertRefused(whitelist, "10.0.0.1", "fd00::1");
+    }
+
+    @Test
+    public void nothingValidRefusesEveryAddress() throws UnknownHostException {
+        IpWhitelist whitelist = IpWhitelist.parse("(camera.local)");
+        assertFalse(whitelist.isAllowAll());
+        assertRefused(whitelist, "192.168.1.20", "::1");
+    }
+}
@@ -0,0 +1,200 @@
+/**
+ * Copyright (c) 2010-2019 Contributors to the openHAB project
+ *
+ * See the NOTICE file(s) distributed with this work for additional
+ * information.
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Public License 2.0 which is available at
+ * http://www.eclipse.org/legal/epl-2.0
+ *
+ * SPDX-License-Identifier: EPL-2.0
+ */
+
+package org.openhab.binding.ipcamera.internal;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+
+/**
+ * The {@link MjpegFrameDecoderTest} feeds multipart MJPEG bodies to the {@link MjpegFrameDecoder} whole, split at
+ * every byte and one byte at a time, as the network can cut a stream anywhere.
+ *
+ * @author Matthew Skinner - Initial contribution
+ */
+
+public class MjpegFrameDecoderTest {
+    private static final String CONTENT_TYPE = "multipart/x-mixed-replace; boundary=myboundary";
+    private static final byte[] JPEG1 = jpeg(1, 2, 3);
+    // Has a line break followed by the boundary's text inside it, which must not be taken for a boundary.
+    private static final byte[] JPEG2 = jpeg('\r', '\n', 'x', 'm', 'y', 'b', 'o', 'u', 'n', 'd', 'a', 'r', 'y', 4);
+
+    private static byte[] jpeg(int... body) {
+        byte[] jpeg = new byte[body.length + 4];
+        jpeg[0] = (byte) 0xFF;
+        jpeg[1] = (byte) 0xD8;
+        for (int i = 0; i < body.length; i++) {
+            jpeg[i + 2] = (byte) body[i];
+        }
+        jpeg[jpeg.length - 2] = (byte) 0xFF;
+        jpeg[jpeg.length - 1] = (byte) 0xD9;
+        return jpeg;
+    }
+
+    private static byte[] part(byte[] body, boolean withLength) {
+        StringBuilder headers = new StringBuilder("--myboundary\r\nContent-Type: image/jpeg\r\n");
+        if (withLength) {
+            headers.append("Content-Length: ").append(body.length).append("\r\n");
+        }
+        headers.append("\r\n");
+        return join(headers.toString().getBytes(StandardCharsets.US_ASCII), body, crlf());
+    }
+
+    private static byte[] crlf() {
+        return "\r\n".getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] join(byte[]... pieces) {
+        ByteArrayOutputStream joined = new ByteArrayOutputStream();
+        for (byte[] piece : pieces) {
+            joined.write(piece, 0, piece.length);
+        }
+        return joined.toByteArray();
+    }
+
+    // Decodes the stream in the pieces given and returns a copy of each frame, every buffer is checked for leaks.
+    private static List<byte[]> decode(String contentType, byte[]... pieces) {
+        List<byte[]> frames = new ArrayList<>();
+        List<ByteBuf> buffers = new ArrayList<>();
+        MjpegFrameDecoder decoder = new MjpegFrameDecoder(contentType, UnpooledByteBufAllocator.DEFAULT, frame -> {
+            try {
+                frames.add(ByteBufUtil.getBytes(frame.content()));
+            } finally {
+                frame.release();
+            }
+        });
+        for (byte[] piece : pieces) {
+            ByteBuf buffer = Unpooled.wrappedBuffer(piece);
+            buffers.add(buffer);
+            decoder.decode(buffer);
+            buffer.release();
+        }
+        decoder.release();
+        for (ByteBuf buffer : buffers) {
+            assertEquals(0, buffer.refCnt());
+        }
+        return frames;
+    }
+
+    private static List<byte[]> decodeSplitAt(byte[] stream, int at) {
+        byte[] first = new byte[at];
+        byte[] second = new byte[stream.length - at];
+        System.arraycopy(stream, 0, first, 0, at);
+        System.arraycopy(stream, at, second, 0, second.length);
+        return decode(CONTENT_TYPE, first, second);
+    }
+
+    private static List<byte[]> decodeByteAtATime(byte[] stream) {
+        byte[][] pieces = new byte[stream.length][];
+        for (int i = 0; i < stream.length; i++) {
+            pieces[i] = new byte[] { stream[i] };
+        }
+        return decode(CONTENT_TYPE, pieces);
+    }
+
+    private static void assertFrames(List<byte[]> frames, byte[]... expected) {
+        assertEquals(expected.length, frames.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertArrayEquals(expected[i], frames.get(i));
+        }
+    }
+
+    @Test
+    public void cutsPartsAtTheirContentLength() {
+        assertFrames(decode(CONTENT_TYPE, join(part(JPEG1, true), part(JPEG2, true))), JPEG1, JPEG2);
+    }
+
+    @Test
+    public void headersSplitAcrossReads() {
+        byte[] stream = join(part(JPEG1, true), part(JPEG2, true));
+        for (int at = 1; at < stream.length; at++) {
+            assertFrames(decodeSplitAt(stream, at), JPEG1, JPEG2);
+        }
+        assertFrames(decodeByteAtATime(stream), JPEG1, JPEG2);
+    }
+
+    @Test
+    public void cutsPartsWithoutContentLengthAtTheBoundary() {
+        // The last part only ends once the next boundary arrives.
+        byte[] stream = join(part(JPEG1, false), part(JPEG2, false));
+        assertFrames(decode(CONTENT_TYPE, stream), JPEG1);
+        assertFrames(decode(CONTENT_TYPE, join(stream, "--myboundary\r\n".getBytes(StandardCharsets.US_ASCII))),
+                JPEG1, JPEG2);
+    }
+
+    @Test
+    public void boundarySplitAcrossReads() {
+        byte[] stream = join(part(JPEG1, false), part(JPEG2, false),
+                "--myboundary\r\n".getBytes(StandardCharsets.US_ASCII));
+        for (int at = 1; at < stream.length; at++) {
+            assertFrames(decodeSplitAt(stream, at), JPEG1, JPEG2);
+        }
+        assertFrames(decodeByteAtATime(stream), JPEG1, JPEG2);
+    }
+
+    @Test
+    public void extraLineBreaksBeforeTheBoundary() {
+        byte[] stream = join(part(JPEG1, true), crlf(), crlf(), part(JPEG2, true));
+        assertFrames(decode(CONTENT_TYPE, stream), JPEG1, JPEG2);
+        assertFrames(decodeByteAtATime(stream), JPEG1, JPEG2);
+    }
+
+    @Test
+    public void boundaryInTheHeaderMayHaveDashesAndQuotes() {
+        byte[] stream = join(part(JPEG1, false), part(JPEG2, true));
+        assertFrames(decode("multipart/x-mixed-replace;boundary=\"--myboundary\"", stream), JPEG1, JPEG2);
+    }
+
+    @Test
+    public void partsThatAreNotJpegsAreDropped() {
+        byte[] notJpeg = "not a picture".getBytes(StandardCharsets.US_ASCII);
+        assertFrames(decode(CONTENT_TYPE, join(part(notJpeg, true), part(JPEG1, true))), JPEG1);
+    }
+
+    @Test
+    public void framesKeepTheBytesUntilReleased() {
+        List<JpegFrame> frames = new ArrayList<>();
+        MjpegFrameDecoder decoder = new MjpegFrameDecoder(CONTENT_TYPE, UnpooledByteBufAllocator.DEFAULT,
+                frames::add);
+        ByteBuf first = Unpooled.wrappedBuffer(part(JPEG1, true));
+        ByteBuf second = Unpooled.wrappedBuffer(part(JPEG2, true));
+        decoder.decode(first);
+        decoder.decode(second);
+        first.release();
+        second.release();
+        decoder.release();
+
+        assertEquals(2, frames.size());
+        // No copy is made, each frame holds on to the buffer it was cut from.
+        assertTrue(first.refCnt() > 0);
+        assertTrue(second.refCnt() > 0);
+        assertArrayEquals(JPEG1, ByteBufUtil.getBytes(frames.get(0).content()));
+        assertArrayEquals(JPEG2, ByteBufUtil.getBytes(frames.get(1).content()));
+        for (JpegFrame frame : frames) {
+            frame.release();
+        }
+        assertEquals(0, first.refCnt());
+        assertEquals(0, second.refCnt());
+    }
+}